@@ -16,10 +16,14 @@
 
 package it.wallgren.android.platform;
 
+import org.eclipse.core.runtime.Status;
 import org.eclipse.ui.plugin.AbstractUIPlugin;
 import org.osgi.framework.BundleContext;
 
 public class Activator extends AbstractUIPlugin {
+    public static final String PLUGIN_ID = "AndroidPlatformPlugin";
+
+    private static Activator plugin;
 
     public Activator() {
     }
@@ -27,10 +31,38 @@ public class Activator extends AbstractUIPlugin {
     @Override
     public void start(BundleContext context) throws Exception {
         super.start(context);
+        plugin = this;
     }
 
     @Override
     public void stop(BundleContext context) throws Exception {
+        plugin = null;
+        LibraryWatcher.stopAll();
+        LibraryContainerInitializer.cancelRefreshJobs();
         super.stop(context);
     }
+
+    /**
+     * Returns the shared instance, or null if the plugin is not started
+     */
+    public static Activator getDefault() {
+        return plugin;
+    }
+
+    /**
+     * Log to the error log, or to stderr if the plugin is not started
+     *
+     * @param severity one of the IStatus severities
+     */
+    public static void log(int severity, String message, Throwable e) {
+        final Activator activator = plugin;
+        if (activator != null) {
+            activator.getLog().log(new Status(severity, PLUGIN_ID, message, e));
+        } else {
+            System.err.println(message);
+            if (e != null) {
+                e.printStackTrace();
+            }
+        }
+    }
 }
@@ -16,15 +16,20 @@
 
 package it.wallgren.android.platform;
 
+import it.wallgren.android.platform.project.AndroidModule;
 import it.wallgren.android.platform.project.AndroidPlatformProject;
+import it.wallgren.android.platform.project.ModuleGraph;
 
 import java.io.File;
 import java.util.Arrays;
-import java.util.LinkedList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.IStatus;
 import org.eclipse.core.runtime.Path;
+import org.eclipse.core.runtime.Status;
 import org.eclipse.jdt.core.IClasspathContainer;
 import org.eclipse.jdt.core.IClasspathEntry;
 import org.eclipse.jdt.core.JavaCore;
@@ -51,76 +56,143 @@ public class AndroidClasspathContainer implements IClasspathContainer {
         this.repoRoot = repoRoot;
     }
 
+    /**
+     * Returns the path of the container with every library of a repo
+     */
+    public static IPath getPath(IPath repoRoot) {
+        return new Path("it.wallgren.android.platform.classpathContainerInitializer"
+                + repoRoot.makeAbsolute());
+    }
+
     @Override
     public IClasspathEntry[] getClasspathEntries() {
-        // TODO: Update entries when jars get added to the file system.
+        IClasspathEntry[] current;
         synchronized (lock) {
-            if (entries == null) {
-                final List<File> libs = getAndroidDependenceisFile(repoRoot);
-                entries = new IClasspathEntry[libs.size()];
-
-                // If we set the source path to the platform project the sources will work as
-                // long as the project is open. It is not perfect, but better than nothing.
-                // TODO: We should probably find a way to look up the exact source path for each lib
-                final IPath srcPath = new Path("/" + AndroidPlatformProject.getProjectName(repoRoot));
-                int i = 0;
-                for (final File jar : libs) {
-                    entries[i++] = JavaCore
-                            .newLibraryEntry(new Path(jar.getAbsolutePath()), srcPath, null);
+            current = entries;
+        }
+        if (current == null) {
+            // Search without holding the lock, it takes a while and a refresh
+            // may set the entries in the meantime
+            final List<File> libs = getAndroidDependenceisFile(repoRoot);
+            final ModuleGraph graph = ModuleGraph.get(repoRoot.toFile());
+            final IClasspathEntry[] found = new IClasspathEntry[libs.size()];
+            int i = 0;
+            for (final File jar : libs) {
+                found[i++] = createEntry(repoRoot, graph, jar);
+            }
+            synchronized (lock) {
+                if (entries == null) {
+                    entries = found;
                 }
+                current = entries;
             }
-            final IClasspathEntry[] out = new IClasspathEntry[entries.length];
-            System.arraycopy(entries, 0, out, 0, out.length);
-            return out;
         }
+        return Arrays.copyOf(current, current.length);
     }
 
-    public void setEntries(IClasspathEntry[] entries) {
-        synchronized (lock) {
-            this.entries = entries;
+    /**
+     * Create the entries for the current libraries from the entries of a
+     * container.
+     *
+     * @return the entries, or null if they are the same as the current ones
+     */
+    static IClasspathEntry[] refreshEntries(IPath repoRoot, IClasspathEntry[] current,
+            List<File> libs) {
+        final ModuleGraph graph = ModuleGraph.get(repoRoot.toFile());
+        final IPath platformSource = getPlatformSourcePath(repoRoot);
+
+        // Keep the entries of libraries that are still there, they may have
+        // source attachments added by the user. Entries with an old default
+        // attachment, the whole platform project or a folder above the
+        // module, get a new one.
+        final Map<IPath, IClasspathEntry> existing = new HashMap<IPath, IClasspathEntry>();
+        for (final IClasspathEntry entry : current) {
+            existing.put(entry.getPath(), entry);
         }
+        boolean changed = libs.size() != current.length;
+        final IClasspathEntry[] refreshed = new IClasspathEntry[libs.size()];
+        int i = 0;
+        for (final File jar : libs) {
+            IClasspathEntry entry = existing.get(new Path(jar.getAbsolutePath()));
+            if (entry == null || platformSource.equals(entry.getSourceAttachmentPath())
+                    || isAboveModule(graph, jar, entry.getSourceAttachmentPath())) {
+                final IClasspathEntry created = createEntry(repoRoot, graph, jar);
+                changed |= !created.equals(entry);
+                entry = created;
+            }
+            refreshed[i++] = entry;
+        }
+        return changed ? refreshed : null;
     }
 
-    private List<File> getAndroidDependenceisFile(IPath repoRoot) {
-        final LinkedList<File> jars = new LinkedList<File>();
-        findJavaLibs(repoRoot.append("/out/target/common/obj/JAVA_LIBRARIES/").toFile(), FILTER,
-                jars);
-        findJavaLibs(repoRoot.append("/out/target/common/obj/APPS/").toFile(), FILTER,
-                jars);
-        return jars;
+    /**
+     * Returns true if a source attachment is a folder above the folder of the
+     * module that built the library
+     */
+    private static boolean isAboveModule(ModuleGraph graph, File jar, IPath srcPath) {
+        final AndroidModule module = graph.getModuleOf(jar);
+        if (module == null || srcPath == null) {
+            return false;
+        }
+        final IPath directory = new Path(module.getDirectory().getAbsolutePath());
+        return srcPath.isPrefixOf(directory) && !srcPath.equals(directory);
     }
 
     /**
-     * Recursive search for java libraries (i.e classes.jar)
-     *
-     * @param path
-     * @param filter items in the filter will not be added to the result
-     * @param out
+     * Create the entry for a library. The source attachment is the source of
+     * the module that built the library. If the module is not known, or its
+     * sources are spread outside the module folder, the platform project is
+     * used. The sources will work as long as the project is open but looking
+     * them up is slow.
      */
-    private void findJavaLibs(File path, List<String> filter, List<File> out) {
-        if (path.isDirectory()) {
-            if (isFiltered(filter, path.getName())) {
-                return;
-            }
-            if (path.getName().equals("emma_out")) {
-                return;
-            }
-            for (final File child : path.listFiles()) {
-                findJavaLibs(child, filter, out);
-            }
+    static IClasspathEntry createEntry(IPath repoRoot, ModuleGraph graph, File jar) {
+        final AndroidModule module = graph.getModuleOf(jar);
+        final File sourceRoot = module != null ? module.getSourceRoot() : null;
+        final IPath srcPath;
+        if (sourceRoot != null && sourceRoot.isDirectory()) {
+            srcPath = new Path(sourceRoot.getAbsolutePath());
+        } else {
+            srcPath = getPlatformSourcePath(repoRoot);
         }
-        if (path.isFile() && "classes.jar".equals(path.getName())) {
-            out.add(path);
+        return JavaCore.newLibraryEntry(new Path(jar.getAbsolutePath()), srcPath, null);
+    }
+
+    private static IPath getPlatformSourcePath(IPath repoRoot) {
+        return new Path("/" + AndroidPlatformProject.getProjectName(repoRoot));
+    }
+
+    public void setEntries(IClasspathEntry[] entries) {
+        synchronized (lock) {
+            this.entries = entries;
         }
     }
 
-    private boolean isFiltered(List<String> filter, String name) {
-        for (final String string : filter) {
-            if (name.startsWith(string)) {
-                return true;
-            }
+    /**
+     * Search the intermediates folders of a repo for the libraries to put on
+     * the classpath
+     */
+    static List<File> getAndroidDependenceisFile(IPath repoRoot) {
+        final JavaLibraryIndex index = JavaLibraryIndex.load(repoRoot);
+        final LibrarySelector selector = LibrarySelector.getDefault();
+        final JavaLibraryFinder finder = new JavaLibraryFinder(FILTER,
+                selector.getLibraryNames(), index);
+        final List<File> found = finder.find(
+                repoRoot.append("/out/target/common/obj/JAVA_LIBRARIES/").toFile(),
+                repoRoot.append("/out/target/common/obj/APPS/").toFile());
+        index.save();
+
+        final PackageIndex packageIndex = PackageIndex.get(repoRoot);
+        packageIndex.update(found);
+        packageIndex.save();
+        final List<File> libs = selector.select(found, packageIndex);
+
+        final Activator activator = Activator.getDefault();
+        if (activator != null) {
+            activator.getLog().log(new Status(IStatus.INFO, Activator.PLUGIN_ID,
+                    repoRoot.lastSegment() + ": " + libs.size() + " of " + found.size()
+                            + " libraries selected"));
         }
-        return false;
+        return libs;
     }
 
     @Override
@@ -135,7 +207,6 @@ public class AndroidClasspathContainer implements IClasspathContainer {
 
     @Override
     public IPath getPath() {
-        return new Path("it.wallgren.android.platform.classpathContainerInitializer"
-                + repoRoot.makeAbsolute());
+        return getPath(repoRoot);
     }
 }
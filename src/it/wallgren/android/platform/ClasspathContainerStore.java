@@ -0,0 +1,159 @@
+/**
+ * Copyright 2012 Martin Wallgren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.wallgren.android.platform;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.core.resources.IWorkspaceRoot;
+import org.eclipse.core.resources.ResourcesPlugin;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.QualifiedName;
+import org.eclipse.jdt.core.IClasspathEntry;
+import org.eclipse.jdt.core.IJavaProject;
+
+/**
+ * Persists the entries of a classpath container between sessions.
+ *
+ * All entries of a container are stored as one compressed file in the plugin
+ * state location, so loading a container with hundreds of libraries is a
+ * single read.
+ *
+ * Earlier versions stored one workspace property per entry. Those are read
+ * if there is no file yet, and removed once the entries have been written in
+ * the new format.
+ */
+public class ClasspathContainerStore {
+    private static final int VERSION = 1;
+    private static final String LEGACY_KEY = "IClasspathEntry.";
+
+    private ClasspathContainerStore() {
+    }
+
+    /**
+     * @return the stored entries, or null if nothing is stored for the
+     *         container
+     */
+    public static IClasspathEntry[] load(final IJavaProject project, IPath containerPath)
+            throws CoreException {
+        final StateFile file = getFile(containerPath);
+        if (file != null && file.exists()) {
+            // A file that can't be read is recreated from the file system,
+            // but manual classpath changes will be lost
+            return file.read(new StateFile.Reader<IClasspathEntry[]>() {
+                @Override
+                public IClasspathEntry[] read(DataInputStream in) throws IOException {
+                    final int size = in.readInt();
+                    final IClasspathEntry[] entries = new IClasspathEntry[size];
+                    for (int i = 0; i < size; i++) {
+                        final byte[] encoded = new byte[in.readInt()];
+                        in.readFully(encoded);
+                        entries[i] = project.decodeClasspathEntry(new String(encoded,
+                                StandardCharsets.UTF_8));
+                        if (entries[i] == null) {
+                            throw new IOException("Invalid classpath entry");
+                        }
+                    }
+                    return entries;
+                }
+            });
+        }
+
+        final IClasspathEntry[] entries = loadLegacy(project, containerPath);
+        if (entries != null && file != null) {
+            save(project, containerPath, entries);
+        }
+        return entries;
+    }
+
+    /**
+     * Store the entries of a container, replacing what was stored before
+     */
+    public static synchronized void save(final IJavaProject project, IPath containerPath,
+            final IClasspathEntry[] entries) throws CoreException {
+        final StateFile file = getFile(containerPath);
+        if (file == null) {
+            return;
+        }
+        final boolean written = file.write(new StateFile.Writer() {
+            @Override
+            public void write(DataOutputStream out) throws IOException {
+                out.writeInt(entries.length);
+                for (final IClasspathEntry entry : entries) {
+                    // Encoded entries may be longer than writeUTF allows
+                    final byte[] encoded = project.encodeClasspathEntry(entry).getBytes(
+                            StandardCharsets.UTF_8);
+                    out.writeInt(encoded.length);
+                    out.write(encoded);
+                }
+            }
+        });
+        if (written) {
+            removeLegacy(containerPath);
+        }
+    }
+
+    private static StateFile getFile(IPath containerPath) {
+        return StateFile.get("containers", containerPath.toString(), ".gz", VERSION, true);
+    }
+
+    /**
+     * Read the entries stored one workspace property per entry
+     */
+    private static IClasspathEntry[] loadLegacy(IJavaProject project, IPath containerPath)
+            throws CoreException {
+        final IWorkspaceRoot root = ResourcesPlugin.getWorkspace().getRoot();
+        final List<IClasspathEntry> entries = new ArrayList<IClasspathEntry>();
+        String encoded;
+        while ((encoded = root.getPersistentProperty(getLegacyName(containerPath,
+                entries.size()))) != null) {
+            final IClasspathEntry entry = project.decodeClasspathEntry(encoded);
+            if (entry == null) {
+                break;
+            }
+            entries.add(entry);
+        }
+        if (entries.isEmpty()) {
+            return null;
+        }
+        return entries.toArray(new IClasspathEntry[entries.size()]);
+    }
+
+    /**
+     * Remove the workspace properties of the old format, including the ones
+     * left behind when the container shrunk
+     */
+    private static void removeLegacy(IPath containerPath) throws CoreException {
+        final IWorkspaceRoot root = ResourcesPlugin.getWorkspace().getRoot();
+        final String qualifier = containerPath.toString();
+        for (final QualifiedName name : root.getPersistentProperties().keySet()) {
+            if (qualifier.equals(name.getQualifier())
+                    && name.getLocalName().startsWith(LEGACY_KEY)) {
+                root.setPersistentProperty(name, null);
+            }
+        }
+    }
+
+    private static QualifiedName getLegacyName(IPath containerPath, int index) {
+        return new QualifiedName(containerPath.toString(), LEGACY_KEY + index);
+    }
+}
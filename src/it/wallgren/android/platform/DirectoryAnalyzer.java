@@ -19,13 +19,22 @@ package it.wallgren.android.platform;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
-import java.util.Arrays;
-import java.util.Comparator;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * Class for analyzing a folder and it sub-folders
+ *
+ * Sub-folders are analyzed in parallel on the {@link SharedPool}. Once a
+ * source folder is found nothing below it is analyzed, the rest of the
+ * package hierarchy belongs to the same source folder. Source folders below
+ * other source folders may or may not be found before their parent, so they
+ * are dropped when the walk is done and only the outermost ones are returned.
  */
 public class DirectoryAnalyzer {
     private final FileFilter fileFilter = new FileFilter() {
@@ -38,62 +47,120 @@ public class DirectoryAnalyzer {
 
     private final File root;
 
-    private final Comparator<? super File> fileSortComparator = new Comparator<File>() {
-        @Override
-        public int compare(File o1, File o2) {
-            if (o1 != null && o1.isFile()) {
-                return -1;
-            }
-            if (o2 != null && o2.isFile()) {
-                return 1;
-            }
-            return 0;
-        }
-    };
-
     public DirectoryAnalyzer(File root) {
         this.root = root;
     }
 
     public Set<File> findJavaSourceDirectories() throws IOException {
-        final Set<File> sourceDirectories = new HashSet<File>();
-        findJavaSourceDirectories(sourceDirectories, root);
-        return sourceDirectories;
+        final Set<File> sourceDirectories = Collections
+                .newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+        try {
+            SharedPool.get().invoke(new AnalyzeTask(sourceDirectories, root));
+        } catch (final AnalyzeException e) {
+            throw e.getCause();
+        }
+        final Set<File> outermost = new HashSet<File>();
+        for (final File dir : sourceDirectories) {
+            if (!isBelowAny(dir.getParentFile(), sourceDirectories)) {
+                outermost.add(dir);
+            }
+        }
+        return outermost;
     }
 
-    private void findJavaSourceDirectories(Set<File> out, File path) throws IOException {
-        // TODO: Shortcut the search for path where source dir is already found
-        // in a previous
-        // iteration.
-        // I.e there is no need to search
-        // ...src/foo/bar/File.java
-        // if
-        // ...src/bar/foo/File.java
-        // has found .../src already
-
-        final File[] children = path.listFiles(fileFilter);
-        Arrays.sort(children, fileSortComparator);
-        for (final File file : children) {
-            if (file.isFile()) {
-                // File filter ensures that this is a Java file
-                final File dir = getSourceDirForJavaFile(file);
-                if (dir != null) {
-                    if (!dir.isDirectory()) {
-                        System.err.println(file + " resulted in non dir as java source: " + dir);
-                        continue;
+    /**
+     * Returns true if path is, or is below, one of the folders
+     */
+    private static boolean isBelowAny(File path, Set<File> dirs) {
+        for (File dir = path; dir != null; dir = dir.getParentFile()) {
+            if (dirs.contains(dir)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Analyzes one folder and forks a new task for each sub-folder
+     */
+    private class AnalyzeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Set<File> out;
+        private final File path;
+
+        public AnalyzeTask(Set<File> out, File path) {
+            this.out = out;
+            this.path = path;
+        }
+
+        @Override
+        protected void compute() {
+            if (isBelowAny(path, out)) {
+                return;
+            }
+            final File[] children = path.listFiles(fileFilter);
+            if (children == null) {
+                return;
+            }
+            final List<AnalyzeTask> tasks = new ArrayList<AnalyzeTask>();
+            // Java files first, they may tell us that this folder is part of
+            // a source folder and then there is no need to look any deeper.
+            for (final File file : children) {
+                if (file.isFile()) {
+                    // File filter ensures that this is a Java file
+                    final File dir = getSourceDirForJavaFile(file);
+                    if (dir != null) {
+                        if (!dir.isDirectory()) {
+                            System.err.println(file + " resulted in non dir as java source: "
+                                    + dir);
+                            continue;
+                        }
+                        out.add(dir);
+                        // No need to check the rest of the content in this
+                        // folder
+                        return;
                     }
-                    out.add(dir);
-                    // No need to check the rest of the content in this folder
-                    break;
+                } else {
+                    tasks.add(new AnalyzeTask(out, file));
                 }
             }
-            if (file.isDirectory()) {
-                findJavaSourceDirectories(out, file);
+            invokeAll(tasks);
+        }
+
+        private File getSourceDirForJavaFile(File file) {
+            try {
+                return DirectoryAnalyzer.getSourceDirForJavaFile(file);
+            } catch (final IOException e) {
+                throw new AnalyzeException(e);
             }
         }
     }
 
-    private File getSourceDirForJavaFile(File file) throws IOException {
+    /**
+     * Carries an IOException out of the fork join pool
+     */
+    private static class AnalyzeException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public AnalyzeException(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+
+    /**
+     * Returns the source folder of a java file, the folder that its package
+     * declaration is relative to
+     *
+     * @return the folder, or null if the package declaration does not match
+     *         the folders the file is in
+     */
+    public static File getSourceDirForJavaFile(File file) throws IOException {
         final JavaFileParser parser = new JavaFileParser(file);
         parser.parse();
         final String javaPackage = parser.getPackage();
@@ -0,0 +1,168 @@
+/**
+ * Copyright 2012 Martin Wallgren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.wallgren.android.platform;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.Path;
+import org.eclipse.jdt.core.IClasspathContainer;
+import org.eclipse.jdt.core.IClasspathEntry;
+
+/**
+ * A part of the libraries of {@link AndroidClasspathContainer}: the libraries
+ * of one module, or of one group of modules with a common name prefix
+ * (framework, core, telephony, ...).
+ *
+ * With the libraries split over several containers a rebuilt module only
+ * changes its own container, and JDT only has to recompute that part of the
+ * classpath. Which containers the platform project gets is decided by the
+ * {@link #GRANULARITY_KEY} preference, set on the Android Platform preference
+ * page. Containers are added and removed as groups are built.
+ *
+ * The container path is the container id, the granularity, the group name
+ * and the repo root.
+ */
+public class GroupClasspathContainer implements IClasspathContainer {
+    public static final String ID =
+            "it.wallgren.android.platform.groupClasspathContainerInitializer";
+
+    public static final String GRANULARITY_KEY = "containerGranularity";
+    /**
+     * One container with all libraries of the repo, the default
+     */
+    public static final String GRANULARITY_REPO = "repo";
+    /**
+     * One container per group of modules
+     */
+    public static final String GRANULARITY_GROUP = "group";
+    /**
+     * One container per module
+     */
+    public static final String GRANULARITY_MODULE = "module";
+
+    private static final String INTERMEDIATES_SUFFIX = "_intermediates";
+
+    private final String granularity;
+    private final String group;
+    private final IPath repoRoot;
+    private final IClasspathEntry[] entries;
+
+    public GroupClasspathContainer(String granularity, String group, IPath repoRoot,
+            IClasspathEntry[] entries) {
+        this.granularity = granularity;
+        this.group = group;
+        this.repoRoot = repoRoot;
+        this.entries = entries;
+    }
+
+    /**
+     * Returns the path of the container for a group
+     */
+    public static IPath getPath(String granularity, String group, IPath repoRoot) {
+        return new Path(ID).append(granularity).append(group).append(repoRoot.makeAbsolute());
+    }
+
+    /**
+     * Returns the granularity of the containers for new platform projects
+     */
+    public static String getGranularity() {
+        final Activator activator = Activator.getDefault();
+        if (activator == null) {
+            return GRANULARITY_REPO;
+        }
+        final String granularity = activator.getPreferenceStore().getString(GRANULARITY_KEY);
+        if (GRANULARITY_GROUP.equals(granularity) || GRANULARITY_MODULE.equals(granularity)) {
+            return granularity;
+        }
+        return GRANULARITY_REPO;
+    }
+
+    /**
+     * Search the repo for libraries and return the groups they belong to
+     */
+    public static List<String> getGroups(String granularity, IPath repoRoot) {
+        return new ArrayList<String>(groupLibraries(granularity,
+                AndroidClasspathContainer.getAndroidDependenceisFile(repoRoot)).keySet());
+    }
+
+    /**
+     * Sort libraries into groups
+     *
+     * @return the libraries of each group, by group name
+     */
+    static Map<String, List<File>> groupLibraries(String granularity, List<File> libs) {
+        final Map<String, List<File>> groups = new TreeMap<String, List<File>>();
+        for (final File lib : libs) {
+            final String group = getGroup(granularity, lib);
+            List<File> groupLibs = groups.get(group);
+            if (groupLibs == null) {
+                groupLibs = new ArrayList<File>();
+                groups.put(group, groupLibs);
+            }
+            groupLibs.add(lib);
+        }
+        return groups;
+    }
+
+    /**
+     * The module of a library is the name of its intermediates folder, the
+     * group is the part of the module name before the first '-', '_' or '.'
+     */
+    private static String getGroup(String granularity, File lib) {
+        String module = lib.getParentFile().getName();
+        if (module.endsWith(INTERMEDIATES_SUFFIX)) {
+            module = module.substring(0, module.length() - INTERMEDIATES_SUFFIX.length());
+        }
+        if (GRANULARITY_MODULE.equals(granularity)) {
+            return module;
+        }
+        for (int i = 1; i < module.length(); i++) {
+            final char c = module.charAt(i);
+            if (c == '-' || c == '_' || c == '.') {
+                return module.substring(0, i);
+            }
+        }
+        return module;
+    }
+
+    @Override
+    public IClasspathEntry[] getClasspathEntries() {
+        final IClasspathEntry[] out = new IClasspathEntry[entries.length];
+        System.arraycopy(entries, 0, out, 0, out.length);
+        return out;
+    }
+
+    @Override
+    public String getDescription() {
+        return repoRoot.lastSegment() + " - " + group + " dependencies";
+    }
+
+    @Override
+    public int getKind() {
+        return K_SYSTEM;
+    }
+
+    @Override
+    public IPath getPath() {
+        return getPath(granularity, group, repoRoot);
+    }
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright 2012 Martin Wallgren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.wallgren.android.platform;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+
+import org.eclipse.core.resources.ResourcesPlugin;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.jdt.core.IClasspathEntry;
+import org.eclipse.jdt.core.IJavaProject;
+import org.eclipse.jdt.core.JavaCore;
+
+/**
+ * Initializes {@link GroupClasspathContainer}s.
+ *
+ * The containers of a repo and granularity are refreshed together, the file
+ * system is searched once and only the containers whose libraries changed are
+ * updated. Groups come and go with the modules that are built, so the refresh
+ * also adds and removes containers on the classpath of the projects using
+ * them.
+ */
+public class GroupClasspathContainerInitializer extends
+        LibraryContainerInitializer<GroupClasspathContainer> {
+    private static final ConcurrentMap<String, Future<GroupClasspathContainer>> CONTAINERS =
+            new ConcurrentHashMap<String, Future<GroupClasspathContainer>>();
+
+    public GroupClasspathContainerInitializer() {
+        super(CONTAINERS);
+    }
+
+    @Override
+    public void initialize(IPath containerPath, IJavaProject project) throws CoreException {
+        if (containerPath.segmentCount() < 4) {
+            // Not a path we created
+            return;
+        }
+        super.initialize(containerPath, project);
+    }
+
+    @Override
+    protected IPath getRepoRoot(IPath containerPath) {
+        return containerPath.removeFirstSegments(3).makeAbsolute();
+    }
+
+    @Override
+    protected String getRefreshKey(IPath containerPath) {
+        return GroupClasspathContainer.ID + "/" + containerPath.segment(1)
+                + getRepoRoot(containerPath);
+    }
+
+    @Override
+    protected GroupClasspathContainer createContainer(IPath containerPath,
+            IClasspathEntry[] entries) {
+        return new GroupClasspathContainer(containerPath.segment(1), containerPath.segment(2),
+                getRepoRoot(containerPath), entries);
+    }
+
+    /**
+     * @return the libraries of every group found, sorted by group name
+     */
+    @Override
+    protected Map<IPath, List<File>> findLibraries(IPath repoRoot, List<IPath> containerPaths) {
+        final String granularity = containerPaths.get(0).segment(1);
+        final Map<String, List<File>> groups = GroupClasspathContainer.groupLibraries(
+                granularity, AndroidClasspathContainer.getAndroidDependenceisFile(repoRoot));
+        final Map<IPath, List<File>> libraries = new LinkedHashMap<IPath, List<File>>();
+        for (final Map.Entry<String, List<File>> group : groups.entrySet()) {
+            libraries.put(GroupClasspathContainer.getPath(granularity, group.getKey(), repoRoot),
+                    group.getValue());
+        }
+        return libraries;
+    }
+
+    /**
+     * Give every project using containers of the granularity one container
+     * per group found, in place of the containers it has
+     */
+    @Override
+    protected void librariesFound(String refreshKey, IPath repoRoot,
+            Map<IPath, List<File>> libraries, IProgressMonitor monitor) throws CoreException {
+        if (libraries.isEmpty()) {
+            // E.g. after make clean, keep the containers until the next build
+            // fills them again
+            return;
+        }
+        for (final IJavaProject project : JavaCore.create(
+                ResourcesPlugin.getWorkspace().getRoot()).getJavaProjects()) {
+            final IClasspathEntry[] classpath = project.getRawClasspath();
+            final Map<IPath, IClasspathEntry> current = new LinkedHashMap<IPath, IClasspathEntry>();
+            final List<IClasspathEntry> updated = new ArrayList<IClasspathEntry>();
+            // The groups go where the first container was
+            int index = -1;
+            for (final IClasspathEntry entry : classpath) {
+                if (!isContainer(entry, refreshKey)) {
+                    updated.add(entry);
+                    continue;
+                }
+                if (index < 0) {
+                    index = updated.size();
+                }
+                current.put(entry.getPath(), entry);
+            }
+            if (current.isEmpty() || current.keySet().equals(libraries.keySet())) {
+                continue;
+            }
+            final List<IClasspathEntry> groups = new ArrayList<IClasspathEntry>();
+            for (final Map.Entry<IPath, List<File>> group : libraries.entrySet()) {
+                IClasspathEntry entry = current.get(group.getKey());
+                if (entry == null) {
+                    // Filled right away, the refresh that follows only
+                    // updates the containers the projects already had
+                    addContainer(project, group.getKey(), AndroidClasspathContainer
+                            .refreshEntries(repoRoot, new IClasspathEntry[0], group.getValue()));
+                    entry = JavaCore.newContainerEntry(group.getKey());
+                }
+                groups.add(entry);
+            }
+            updated.addAll(index, groups);
+            project.setRawClasspath(updated.toArray(new IClasspathEntry[updated.size()]),
+                    monitor);
+        }
+    }
+
+    private boolean isContainer(IClasspathEntry entry, String refreshKey) {
+        return entry.getEntryKind() == IClasspathEntry.CPE_CONTAINER
+                && entry.getPath().segmentCount() >= 4
+                && GroupClasspathContainer.ID.equals(entry.getPath().segment(0))
+                && refreshKey.equals(getRefreshKey(entry.getPath()));
+    }
+}
@@ -17,12 +17,15 @@
 package it.wallgren.android.platform;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 
 import org.eclipse.jdt.core.dom.AST;
 import org.eclipse.jdt.core.dom.ASTParser;
@@ -30,58 +33,364 @@ import org.eclipse.jdt.core.dom.CompilationUnit;
 import org.eclipse.jdt.core.dom.PackageDeclaration;
 
 public class JavaFileParser {
+    // TODO: Make sure that the entire world settles on one encoding and
+    // that every file in existance is re-encoded.
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    /**
+     * Number of bytes read from the start of a file when looking for the
+     * package declaration. It is enough to get past most license headers, if
+     * it isn't the size is doubled until the declaration is found.
+     */
+    private static final int HEADER_SIZE = 4096;
+
+    private static final ThreadLocal<HeaderBuffer> HEADER_BUFFERS =
+            new ThreadLocal<HeaderBuffer>() {
+                @Override
+                protected HeaderBuffer initialValue() {
+                    return new HeaderBuffer();
+                }
+            };
 
     private final File javaFile;
-    private PackageDeclaration javaPackage;
+    private String javaPackage;
 
     public JavaFileParser(File javaFile) {
         this.javaFile = javaFile;
     }
 
-    // use ASTParse to parse string
     public void parse() throws IOException {
+        // For now we only care about the package, parse more data as need
+        // arises. Only the start of the file is read in the common case.
+        final HeaderBuffer header = HEADER_BUFFERS.get();
+        try (FileChannel fc = FileChannel.open(javaFile.toPath(), StandardOpenOption.READ)) {
+            int size = HEADER_SIZE;
+            while (true) {
+                final boolean complete = header.read(fc, size);
+                final PackageLexer lexer = new PackageLexer(header.chars, complete);
+                javaPackage = lexer.lex();
+                if (javaPackage != null || !lexer.isTruncated()) {
+                    break;
+                }
+                size *= 2;
+            }
+        }
+        if (javaPackage == null) {
+            // The lexer gave up, let the real parser have a go at it
+            parseAST();
+        }
+    }
+
+    // use ASTParse to parse string
+    private void parseAST() throws IOException {
         final ASTParser parser = ASTParser.newParser(AST.JLS3);
         parser.setSource(readFileToString().toCharArray());
         parser.setKind(ASTParser.K_COMPILATION_UNIT);
 
-        // For now we only care about the package, parse more data as need
-        // arises
         final CompilationUnit cu = (CompilationUnit) parser.createAST(null);
-        javaPackage = cu.getPackage();
+        final PackageDeclaration declaration = cu.getPackage();
+        if (declaration == null || declaration.getName() == null) {
+            javaPackage = "";
+        } else {
+            javaPackage = declaration.getName().getFullyQualifiedName();
+        }
     }
 
     private String readFileToString() throws IOException {
-        final FileInputStream in = new FileInputStream(javaFile);
-        final FileChannel fc = in.getChannel();
-        final ByteBuffer buf = ByteBuffer.allocate(8192);
-
-        if (fc.size() > Integer.MAX_VALUE) {
+        if (javaFile.length() > Integer.MAX_VALUE) {
             // This is a crazy size for a java source file, you deserve to fail.
             throw new IOException(javaFile + " to large to parse");
         }
-
-        final StringBuilder sb = new StringBuilder((int) fc.size());
-        // TODO: Make sure that the entire world settles on one encoding and
-        // that every file in existance is re-encoded.
-        final Charset cs = Charset.forName("UTF-8");
-        while (fc.read(buf) != -1) {
-            buf.rewind();
-            final CharBuffer chbuf = cs.decode(buf);
-            sb.append(chbuf.array());
-            buf.clear();
-        }
-
-        in.close();
-        return sb.toString();
+        return new String(Files.readAllBytes(javaFile.toPath()), CHARSET);
     }
 
     public String getPackage() {
         if (javaPackage == null) {
             return "";
         }
-        if (javaPackage.getName() == null) {
-            return "";
+        return javaPackage;
+    }
+
+    /**
+     * The start of a file, decoded. The buffers and the decoder are reused
+     * for every file parsed on the same thread.
+     */
+    private static class HeaderBuffer {
+        private final CharsetDecoder decoder = CHARSET.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private ByteBuffer bytes = ByteBuffer.allocateDirect(HEADER_SIZE);
+        private CharBuffer chars = CharBuffer.allocate(HEADER_SIZE);
+
+        /**
+         * Read and decode at most size bytes from the start of the file into
+         * chars.
+         *
+         * @return true if the entire file was read
+         */
+        public boolean read(FileChannel fc, int size) throws IOException {
+            if (bytes.capacity() < size) {
+                bytes = ByteBuffer.allocateDirect(size);
+                chars = CharBuffer.allocate(size);
+            }
+            final long fileSize = fc.size();
+            bytes.clear();
+            bytes.limit((int) Math.min(size, fileSize));
+            while (bytes.hasRemaining()) {
+                if (fc.read(bytes, bytes.position()) < 0) {
+                    break;
+                }
+            }
+            final boolean complete = bytes.position() >= fileSize;
+            bytes.flip();
+
+            chars.clear();
+            decoder.reset();
+            // A character split at the end of a partial read is left in bytes
+            decoder.decode(bytes, chars, complete);
+            if (complete) {
+                decoder.flush(chars);
+            }
+            chars.flip();
+            return complete;
+        }
+    }
+
+    /**
+     * Reads the package declaration without parsing the rest of the file.
+     *
+     * Only whitespace, comments and annotations may come before the package
+     * declaration. The first other token ends the search, if it is not the
+     * package keyword the file is in the default package.
+     */
+    private static class PackageLexer {
+        private static final int EOF = -1;
+        private static final int BYTE_ORDER_MARK = 0xFEFF;
+
+        private final CharBuffer chars;
+        private final boolean complete;
+        private boolean truncated;
+        private int next;
+
+        /**
+         * @param chars the start of the file
+         * @param complete true if chars is the entire file
+         */
+        public PackageLexer(CharBuffer chars, boolean complete) {
+            this.chars = chars;
+            this.complete = complete;
+            read();
+            if (next == BYTE_ORDER_MARK) {
+                read();
+            }
+        }
+
+        /**
+         * @return true if the lexer ran out of input before the end of the
+         *         file, lex() should be run again with more of the file.
+         */
+        public boolean isTruncated() {
+            return truncated;
+        }
+
+        /**
+         * @return the package name, an empty string for the default package or
+         *         null if the lexer can't tell (e.g unicode escapes or not
+         *         enough input).
+         */
+        public String lex() {
+            final String javaPackage = lexPackage();
+            if (truncated) {
+                // Whatever we found may continue past the end of the input
+                return null;
+            }
+            return javaPackage;
+        }
+
+        private String lexPackage() {
+            while (true) {
+                if (!skipWhitespaceAndComments()) {
+                    return null;
+                }
+                if (next == EOF) {
+                    return "";
+                }
+                if (next == '@') {
+                    if (!skipAnnotation()) {
+                        return null;
+                    }
+                    continue;
+                }
+                if (!Character.isJavaIdentifierStart(next)) {
+                    return null;
+                }
+                final String identifier = readIdentifier();
+                if (!"package".equals(identifier)) {
+                    // import, class, interface, modifiers...
+                    return "";
+                }
+                return readQualifiedName();
+            }
+        }
+
+        private String readQualifiedName() {
+            final StringBuilder name = new StringBuilder();
+            while (true) {
+                if (!skipWhitespaceAndComments() || !Character.isJavaIdentifierStart(next)) {
+                    return null;
+                }
+                name.append(readIdentifier());
+                if (!skipWhitespaceAndComments()) {
+                    return null;
+                }
+                if (next == ';') {
+                    return name.toString();
+                }
+                if (next != '.') {
+                    return null;
+                }
+                name.append('.');
+                read();
+            }
+        }
+
+        private boolean skipAnnotation() {
+            // @Name or @qualified.Name, optionally followed by (...)
+            read();
+            if (readQualifiedAnnotationName() == null) {
+                return false;
+            }
+            if (!skipWhitespaceAndComments()) {
+                return false;
+            }
+            if (next == '(') {
+                return skipParenthesis();
+            }
+            return true;
+        }
+
+        private String readQualifiedAnnotationName() {
+            final StringBuilder name = new StringBuilder();
+            while (true) {
+                if (!skipWhitespaceAndComments() || !Character.isJavaIdentifierStart(next)) {
+                    return null;
+                }
+                name.append(readIdentifier());
+                if (!skipWhitespaceAndComments()) {
+                    return null;
+                }
+                if (next != '.') {
+                    return name.toString();
+                }
+                name.append('.');
+                read();
+            }
+        }
+
+        private boolean skipParenthesis() {
+            int depth = 0;
+            while (next != EOF) {
+                if (!skipWhitespaceAndComments()) {
+                    return false;
+                }
+                switch (next) {
+                    case '(':
+                        depth++;
+                        break;
+                    case ')':
+                        depth--;
+                        if (depth == 0) {
+                            read();
+                            return true;
+                        }
+                        break;
+                    case '"':
+                    case '\'':
+                        if (!skipLiteral(next)) {
+                            return false;
+                        }
+                        continue;
+                    case EOF:
+                        return false;
+                    default:
+                        break;
+                }
+                read();
+            }
+            return false;
+        }
+
+        private boolean skipLiteral(int quote) {
+            read();
+            while (next != quote) {
+                if (next == EOF || next == '\n') {
+                    return false;
+                }
+                if (next == '\\') {
+                    read();
+                }
+                read();
+            }
+            read();
+            return true;
+        }
+
+        /**
+         * @return false if the input contains something we don't handle
+         */
+        private boolean skipWhitespaceAndComments() {
+            while (true) {
+                if (next == '\\') {
+                    // Unicode escapes may hide anything, leave those files to
+                    // the real parser
+                    return false;
+                }
+                if (Character.isWhitespace(next)) {
+                    read();
+                    continue;
+                }
+                if (next != '/') {
+                    return true;
+                }
+                read();
+                if (next == '/') {
+                    while (next != '\n' && next != '\r' && next != EOF) {
+                        read();
+                    }
+                } else if (next == '*') {
+                    read();
+                    int previous = 0;
+                    while (!(previous == '*' && next == '/')) {
+                        if (next == EOF) {
+                            return false;
+                        }
+                        previous = next;
+                        read();
+                    }
+                    read();
+                } else {
+                    // A lone slash can't come before the package declaration
+                    return false;
+                }
+            }
+        }
+
+        private String readIdentifier() {
+            final StringBuilder identifier = new StringBuilder();
+            while (next != EOF && Character.isJavaIdentifierPart(next)) {
+                identifier.append((char) next);
+                read();
+            }
+            return identifier.toString();
+        }
+
+        private void read() {
+            if (chars.hasRemaining()) {
+                next = chars.get();
+            } else {
+                next = EOF;
+                truncated = !complete;
+            }
         }
-        return javaPackage.getName().getFullyQualifiedName();
     }
 }
@@ -0,0 +1,356 @@
+/**
+ * Copyright 2012 Martin Wallgren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.wallgren.android.platform;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Finds java libraries (classes.jar, or the jars with the given names) in the
+ * intermediates folders of a compiled android repo.
+ *
+ * Every module in the intermediates folders is searched as a separate task on
+ * the {@link SharedPool}. The result is sorted so that the classpath stays the
+ * same between runs.
+ *
+ * The search is done with {@link Files#walkFileTree}, the attributes read
+ * while walking are reused so each entry is only stat'ed once. Symbolic links
+ * are followed, e.g. to an out folder on another disk; links back to a folder
+ * being searched, or to the roots of the search, are skipped. If a
+ * {@link JavaLibraryIndex} is given, folders that are unchanged since the last
+ * search are not listed at all.
+ */
+public class JavaLibraryFinder {
+    private static final String LIBRARY_NAME = "classes.jar";
+    private static final String EMMA_OUT = "emma_out";
+
+    private static final PathMatcher JAR_MATCHER = FileSystems.getDefault().getPathMatcher(
+            "glob:*.jar");
+
+    private final List<String> filter;
+    private final PathMatcher libraryMatcher;
+    private final JavaLibraryIndex index;
+
+    /**
+     * @param filter folders starting with any of the strings in the filter will
+     *            not be searched
+     */
+    public JavaLibraryFinder(List<String> filter) {
+        this(filter, null);
+    }
+
+    /**
+     * @param filter folders starting with any of the strings in the filter will
+     *            not be searched
+     * @param index index of a previous search, updated with the result of this
+     *            search. May be null.
+     */
+    public JavaLibraryFinder(List<String> filter, JavaLibraryIndex index) {
+        this(filter, Collections.singleton(LIBRARY_NAME), index);
+    }
+
+    /**
+     * @param filter folders starting with any of the strings in the filter will
+     *            not be searched
+     * @param names the file names of the libraries to find
+     * @param index index of a previous search, updated with the result of this
+     *            search. May be null.
+     */
+    public JavaLibraryFinder(List<String> filter, Set<String> names, JavaLibraryIndex index) {
+        this.filter = filter;
+        this.libraryMatcher = FileSystems.getDefault().getPathMatcher(
+                "glob:{" + join(names) + "}");
+        this.index = index;
+    }
+
+    private static String join(Set<String> names) {
+        final StringBuilder sb = new StringBuilder();
+        for (final String name : names) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(name);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Search the given roots for java libraries. The libraries of the first
+     * root are listed first in the result.
+     */
+    public List<File> find(File... roots) {
+        final Set<Object> rootKeys = new HashSet<Object>();
+        for (final File root : roots) {
+            try {
+                final Path path = root.toPath();
+                rootKeys.add(getKey(path, Files.readAttributes(path, BasicFileAttributes.class)));
+            } catch (final IOException e) {
+                // Not there, nothing to search
+            }
+        }
+        final List<File> jars = new ArrayList<File>();
+        for (final File root : roots) {
+            jars.addAll(find(SharedPool.get(), root.toPath(), rootKeys));
+        }
+        return jars;
+    }
+
+    /**
+     * List all jar files directly inside a folder, sub folders are not
+     * searched.
+     */
+    public static List<File> findJars(File dir) {
+        final List<File> jars = new ArrayList<File>();
+        walk(dir.toPath(), 1, new LibraryVisitor(JAR_MATCHER, Collections.<String> emptyList(),
+                null, Collections.<Object> emptySet(), jars));
+        Collections.sort(jars);
+        return jars;
+    }
+
+    private List<File> find(ExecutorService executor, Path root, final Set<Object> rootKeys) {
+        final List<File> jars = new LinkedList<File>();
+        final List<Path> children = new ArrayList<Path>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(root)) {
+            for (final Path child : stream) {
+                children.add(child);
+            }
+        } catch (final IOException e) {
+            // Not a directory (or not readable), nothing to search
+            return jars;
+        }
+        Collections.sort(children);
+
+        final List<Future<List<File>>> results = new ArrayList<Future<List<File>>>(
+                children.size());
+        for (final Path child : children) {
+            results.add(executor.submit(new Callable<List<File>>() {
+                @Override
+                public List<File> call() throws Exception {
+                    final List<File> out = new ArrayList<File>();
+                    walk(child, Integer.MAX_VALUE, new LibraryVisitor(libraryMatcher, filter,
+                            index, rootKeys, out));
+                    Collections.sort(out);
+                    return out;
+                }
+            }));
+        }
+
+        for (final Future<List<File>> result : results) {
+            try {
+                jars.addAll(result.get());
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                // The pool is shared, drop the walks that have not started
+                for (final Future<List<File>> pending : results) {
+                    pending.cancel(false);
+                }
+                break;
+            } catch (final ExecutionException e) {
+                // Skip the failing module, the rest of the libraries are
+                // still useful
+                e.getCause().printStackTrace();
+            }
+        }
+        return jars;
+    }
+
+    /**
+     * The file key identifies a folder whatever link it was reached through.
+     * Not all file systems have one.
+     */
+    private static Object getKey(Path dir, BasicFileAttributes attrs) {
+        final Object key = attrs.fileKey();
+        return key != null ? key : dir;
+    }
+
+    private static void walk(Path start, int maxDepth, LibraryVisitor visitor) {
+        try {
+            Files.walkFileTree(start, EnumSet.of(FileVisitOption.FOLLOW_LINKS), maxDepth,
+                    visitor);
+        } catch (final IOException e) {
+            // Should not happen, the visitor skips everything it can't read
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Collects all regular files matching a pattern. Filtered folders and
+     * emma_out are not entered.
+     *
+     * With an index, every searched folder is recorded in the index and
+     * folders with a valid index entry are taken from the index instead of
+     * being listed.
+     */
+    private static class LibraryVisitor extends SimpleFileVisitor<Path> {
+        private final PathMatcher matcher;
+        private final List<String> filter;
+        private final JavaLibraryIndex index;
+        private final Set<Object> rootKeys;
+        private final List<File> out;
+        private final Map<Path, JavaLibraryIndex.Entry> recording;
+        // Folders taken from the index that are being reused, by file key
+        private final Set<Object> reusing;
+
+        /**
+         * @param rootKeys file keys of the roots of the search, links back to
+         *            them are not followed
+         */
+        public LibraryVisitor(PathMatcher matcher, List<String> filter, JavaLibraryIndex index,
+                Set<Object> rootKeys, List<File> out) {
+            this.matcher = matcher;
+            this.filter = filter;
+            this.index = index;
+            this.rootKeys = rootKeys;
+            this.out = out;
+            this.recording = new HashMap<Path, JavaLibraryIndex.Entry>();
+            this.reusing = new HashSet<Object>();
+        }
+
+        @Override
+        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+            final Path name = dir.getFileName();
+            if (name == null) {
+                return FileVisitResult.CONTINUE;
+            }
+            if (isFiltered(name.toString()) || EMMA_OUT.equals(name.toString())
+                    || rootKeys.contains(getKey(dir, attrs))) {
+                return FileVisitResult.SKIP_SUBTREE;
+            }
+            if (index == null) {
+                return FileVisitResult.CONTINUE;
+            }
+            final JavaLibraryIndex.Entry parent = recording.get(dir.getParent());
+            if (parent != null) {
+                parent.dirs.add(name.toString());
+            }
+            final long mtime = attrs.lastModifiedTime().toMillis();
+            final JavaLibraryIndex.Entry entry = index.lookup(dir, mtime);
+            if (entry != null) {
+                reuse(dir, getKey(dir, attrs), entry);
+                return FileVisitResult.SKIP_SUBTREE;
+            }
+            recording.put(dir, new JavaLibraryIndex.Entry(mtime));
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+            if (attrs.isRegularFile() && JAR_MATCHER.matches(file.getFileName())) {
+                if (matcher.matches(file.getFileName())) {
+                    out.add(file.toFile());
+                }
+                // All jars are indexed, the index stays valid if the names
+                // searched for change
+                final JavaLibraryIndex.Entry entry = recording.get(file.getParent());
+                if (entry != null) {
+                    entry.libs.add(file.getFileName().toString());
+                }
+            }
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFileFailed(Path file, IOException exc) {
+            // Unreadable entries, broken links and links to a folder above
+            // (FileSystemLoopException) are simply skipped
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult postVisitDirectory(Path dir, IOException exc) {
+            final JavaLibraryIndex.Entry entry = recording.remove(dir);
+            if (entry != null && exc == null) {
+                index.put(dir, entry);
+            }
+            return FileVisitResult.CONTINUE;
+        }
+
+        /**
+         * Take the content of an unchanged folder from the index. Only the
+         * sub folders are stat'ed to see if they are unchanged as well, the
+         * ones that are not are searched again. A link back to a folder being
+         * reused is skipped, the walk only guards against loops below where
+         * it started.
+         */
+        private void reuse(Path dir, Object key, JavaLibraryIndex.Entry entry) {
+            if (!reusing.add(key)) {
+                return;
+            }
+            try {
+                reuseContent(dir, entry);
+            } finally {
+                reusing.remove(key);
+            }
+        }
+
+        private void reuseContent(Path dir, JavaLibraryIndex.Entry entry) {
+            for (final String lib : entry.libs) {
+                final Path file = dir.resolve(lib);
+                if (matcher.matches(file.getFileName())) {
+                    out.add(file.toFile());
+                }
+            }
+            for (final String name : entry.dirs) {
+                final Path child = dir.resolve(name);
+                final BasicFileAttributes attrs;
+                try {
+                    attrs = Files.readAttributes(child, BasicFileAttributes.class);
+                } catch (final IOException e) {
+                    continue;
+                }
+                final JavaLibraryIndex.Entry childEntry = index.lookup(child, attrs
+                        .lastModifiedTime().toMillis());
+                if (childEntry != null) {
+                    reuse(child, getKey(child, attrs), childEntry);
+                } else {
+                    walk(child, Integer.MAX_VALUE, this);
+                }
+            }
+        }
+
+        private boolean isFiltered(String name) {
+            for (final String string : filter) {
+                if (name.startsWith(string)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/**
+ * Copyright 2012 Martin Wallgren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.wallgren.android.platform;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.core.runtime.IPath;
+
+/**
+ * Persistent index of the folders searched by {@link JavaLibraryFinder}.
+ *
+ * For every folder the index remembers its modification time, the sub folders
+ * to search and the libraries found directly in it. A folder whose
+ * modification time is unchanged since the index was written has the same
+ * content, so the finder only has to stat it instead of listing it again.
+ *
+ * The index is stored in the plugin state location, one file per repo.
+ */
+public class JavaLibraryIndex {
+    private static final int VERSION = 2;
+
+    /**
+     * Folders modified this close to the time the index was written may be
+     * modified again without the modification time changing (file systems
+     * with one second resolution). Those folders are always searched again.
+     */
+    private static final long MTIME_RESOLUTION = 2000;
+
+    private final Path root;
+    private final StateFile indexFile;
+    private final long created;
+    private final Map<String, Entry> previous;
+    private final Map<String, Entry> current = new ConcurrentHashMap<String, Entry>();
+
+    private JavaLibraryIndex(Path root, StateFile indexFile, long created,
+            Map<String, Entry> previous) {
+        this.root = root;
+        this.indexFile = indexFile;
+        this.created = created;
+        this.previous = previous;
+    }
+
+    /**
+     * Load the index for a repo. If there is no stored index (or it can't be
+     * read) an empty index is returned.
+     */
+    public static JavaLibraryIndex load(IPath repoRoot) {
+        final Path root = repoRoot.toFile().toPath();
+        final StateFile indexFile = StateFile.get("libraries",
+                repoRoot.makeAbsolute().toString(), ".idx", VERSION, false);
+        if (indexFile == null) {
+            return empty(root, null);
+        }
+        final JavaLibraryIndex index = indexFile.read(new StateFile.Reader<JavaLibraryIndex>() {
+            @Override
+            public JavaLibraryIndex read(DataInputStream in) throws IOException {
+                final long created = in.readLong();
+                final int size = in.readInt();
+                final Map<String, Entry> entries = new HashMap<String, Entry>(size * 2);
+                for (int i = 0; i < size; i++) {
+                    final String dir = in.readUTF();
+                    entries.put(dir, Entry.read(in));
+                }
+                return new JavaLibraryIndex(root, indexFile, created, entries);
+            }
+        });
+        // Without an index the folders will be searched again
+        return index != null ? index : empty(root, indexFile);
+    }
+
+    private static JavaLibraryIndex empty(Path root, StateFile indexFile) {
+        return new JavaLibraryIndex(root, indexFile, 0, Collections.<String, Entry> emptyMap());
+    }
+
+    /**
+     * Write everything found (or confirmed) since the index was loaded. Folders
+     * that were not visited, i.e. removed from the file system, are dropped.
+     */
+    public void save() {
+        if (indexFile == null) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        indexFile.write(new StateFile.Writer() {
+            @Override
+            public void write(DataOutputStream out) throws IOException {
+                out.writeLong(now);
+                out.writeInt(current.size());
+                for (final Map.Entry<String, Entry> entry : current.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    entry.getValue().write(out);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the stored entry for a folder if it is still valid, i.e. the
+     * folder has not been modified since it was indexed.
+     *
+     * @return the entry or null if the folder has to be searched
+     */
+    Entry lookup(Path dir, long mtime) {
+        final Entry entry = previous.get(key(dir));
+        if (entry == null || entry.mtime != mtime || mtime > created - MTIME_RESOLUTION) {
+            return null;
+        }
+        current.put(key(dir), entry);
+        return entry;
+    }
+
+    void put(Path dir, Entry entry) {
+        current.put(key(dir), entry);
+    }
+
+    private String key(Path dir) {
+        return root.relativize(dir).toString();
+    }
+
+    /**
+     * The indexed content of one folder
+     */
+    static class Entry {
+        final long mtime;
+        final List<String> dirs;
+        final List<String> libs;
+
+        Entry(long mtime) {
+            this(mtime, new ArrayList<String>(), new ArrayList<String>());
+        }
+
+        private Entry(long mtime, List<String> dirs, List<String> libs) {
+            this.mtime = mtime;
+            this.dirs = dirs;
+            this.libs = libs;
+        }
+
+        private static Entry read(DataInputStream in) throws IOException {
+            final long mtime = in.readLong();
+            return new Entry(mtime, readStrings(in), readStrings(in));
+        }
+
+        private void write(DataOutputStream out) throws IOException {
+            out.writeLong(mtime);
+            writeStrings(out, dirs);
+            writeStrings(out, libs);
+        }
+
+        private static List<String> readStrings(DataInputStream in) throws IOException {
+            final int size = in.readInt();
+            final List<String> strings = new ArrayList<String>(size);
+            for (int i = 0; i < size; i++) {
+                strings.add(in.readUTF());
+            }
+            return strings;
+        }
+
+        private static void writeStrings(DataOutputStream out, List<String> strings)
+                throws IOException {
+            out.writeInt(strings.size());
+            for (final String string : strings) {
+                out.writeUTF(string);
+            }
+        }
+    }
+}
@@ -0,0 +1,431 @@
+/**
+ * Copyright 2012 Martin Wallgren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.wallgren.android.platform;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import org.eclipse.core.resources.ResourcesPlugin;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.NullProgressMonitor;
+import org.eclipse.core.runtime.Path;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.jdt.core.ClasspathContainerInitializer;
+import org.eclipse.jdt.core.IClasspathContainer;
+import org.eclipse.jdt.core.IClasspathEntry;
+import org.eclipse.jdt.core.IJavaModel;
+import org.eclipse.jdt.core.IJavaProject;
+import org.eclipse.jdt.core.JavaCore;
+import org.eclipse.jdt.core.JavaModelException;
+
+/**
+ * Base of the initializers of containers with libraries built in a repo.
+ *
+ * A container starts with the entries of the last session, stored by
+ * {@link ClasspathContainerStore}, so initializing it never searches the file
+ * system. The libraries are searched by a background job, once per session
+ * and whenever the build adds or removes libraries. Containers refreshed
+ * together, e.g. all containers of a repo, share one job and one search. A
+ * container is only replaced if its libraries changed.
+ *
+ * The user may update a container, e.g. add source attachments. The update is
+ * persisted and kept when the container is refreshed.
+ *
+ * @param <C> the type of the containers
+ */
+public abstract class LibraryContainerInitializer<C extends IClasspathContainer> extends
+        ClasspathContainerInitializer {
+    /**
+     * The family of all refresh jobs
+     */
+    public static final Object JOB_FAMILY = LibraryContainerInitializer.class;
+
+    private static final Map<String, Job> REFRESH_JOBS = new HashMap<String, Job>();
+
+    /**
+     * The containers, created at most once per container path. Projects of
+     * different repos are initialized in parallel, only projects waiting for
+     * the same container are blocked while it is loaded.
+     */
+    private final ConcurrentMap<String, Future<C>> containers;
+
+    /**
+     * @param containers the containers of the subclass, shared by all its
+     *            instances
+     */
+    protected LibraryContainerInitializer(ConcurrentMap<String, Future<C>> containers) {
+        this.containers = containers;
+    }
+
+    /**
+     * Returns the root of the repo the libraries of a container are built in
+     */
+    protected abstract IPath getRepoRoot(IPath containerPath);
+
+    /**
+     * Returns the key of the containers that are refreshed together. Unique
+     * among all initializers, e.g. by starting with the container id.
+     */
+    protected abstract String getRefreshKey(IPath containerPath);
+
+    /**
+     * Create a container with the given entries
+     */
+    protected abstract C createContainer(IPath containerPath, IClasspathEntry[] entries);
+
+    /**
+     * Search the file system for the libraries of containers that are
+     * refreshed together
+     *
+     * @return the libraries of each container, keyed by container path
+     */
+    protected abstract Map<IPath, List<File>> findLibraries(IPath repoRoot,
+            List<IPath> containerPaths);
+
+    /**
+     * Called by the refresh job with the libraries found, before the
+     * containers are updated. Does nothing by default.
+     *
+     * @param refreshKey the key of the containers being refreshed
+     * @param libraries the result of {@link #findLibraries}
+     */
+    protected void librariesFound(String refreshKey, IPath repoRoot,
+            Map<IPath, List<File>> libraries, IProgressMonitor monitor) throws CoreException {
+    }
+
+    /**
+     * Add a container with the given entries, unless there already is one
+     * for the path, and persist it. Lets a subclass put a new container on a
+     * classpath without it being searched for again.
+     */
+    protected void addContainer(IJavaProject project, IPath containerPath,
+            IClasspathEntry[] entries) throws CoreException {
+        final C container = createContainer(containerPath, entries);
+        if (containers.putIfAbsent(containerPath.toString(), loaded(container)) == null) {
+            ClasspathContainerStore.save(project, containerPath, entries);
+        }
+    }
+
+    @Override
+    public void initialize(IPath containerPath, IJavaProject project) throws CoreException {
+        final IClasspathContainer container = getContainer(containerPath, project);
+        JavaCore.setClasspathContainer(containerPath, new IJavaProject[] {
+                project
+        },
+        new IClasspathContainer[] {
+                container
+        }, new NullProgressMonitor());
+    }
+
+    private C getContainer(final IPath containerPath, final IJavaProject project) {
+        final String key = containerPath.toString();
+        Future<C> container = containers.get(key);
+        if (container == null) {
+            final boolean[] persisted = new boolean[1];
+            final FutureTask<C> task = new FutureTask<C>(new Callable<C>() {
+                @Override
+                public C call() {
+                    final IClasspathEntry[] entries = loadEntries(project, containerPath);
+                    persisted[0] = entries != null;
+                    return createContainer(containerPath, persisted[0] ? entries
+                            : new IClasspathEntry[0]);
+                }
+            });
+            container = containers.putIfAbsent(key, task);
+            if (container == null) {
+                // We won, load it on this thread
+                container = task;
+                task.run();
+                if (!isLoaded(task)) {
+                    // Let the next caller try again
+                    containers.remove(key, task);
+                } else {
+                    final Job job = getRefreshJob(containerPath);
+                    if (!persisted[0]) {
+                        // The job may already have run, a new container
+                        // needs its entries
+                        job.schedule();
+                    }
+                }
+            }
+        }
+        return get(container);
+    }
+
+    /**
+     * Returns the entries of the last session, or null if there are none
+     */
+    private static IClasspathEntry[] loadEntries(IJavaProject project, IPath containerPath) {
+        try {
+            return ClasspathContainerStore.load(project, containerPath);
+        } catch (final CoreException e) {
+            // We'll recreate the paths later, but manual classpath changes
+            // will be lost (like source and javadoc attachments)
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * @return false if loading the container failed
+     */
+    private static boolean isLoaded(Future<?> container) {
+        try {
+            container.get();
+            return true;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (final ExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Wait for a container to be loaded by another thread. Interrupts are
+     * deferred until it is done, initialization can't be aborted halfway.
+     */
+    private static <C> C get(Future<C> container) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return container.get();
+                } catch (final InterruptedException e) {
+                    interrupted = true;
+                } catch (final ExecutionException e) {
+                    if (e.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException) e.getCause();
+                    }
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Wrap a container that is already loaded, e.g. a refreshed one
+     */
+    private static <C> Future<C> loaded(final C container) {
+        final FutureTask<C> task = new FutureTask<C>(new Callable<C>() {
+            @Override
+            public C call() {
+                return container;
+            }
+        });
+        task.run();
+        return task;
+    }
+
+    /**
+     * Returns the job refreshing the containers with the same refresh key as
+     * a container. The first time the job is scheduled, and it is scheduled
+     * again whenever the build adds or removes libraries of the repo. The
+     * containers are updated in the job, never on the thread that initialized
+     * them or reported the change.
+     */
+    private Job getRefreshJob(IPath containerPath) {
+        final String key = getRefreshKey(containerPath);
+        final IPath repoRoot = getRepoRoot(containerPath);
+        synchronized (REFRESH_JOBS) {
+            Job job = REFRESH_JOBS.get(key);
+            if (job != null) {
+                return job;
+            }
+            final Job refreshJob = new Job("Updating " + repoRoot.lastSegment()
+                    + " - java dependencies") {
+                @Override
+                protected IStatus run(IProgressMonitor monitor) {
+                    try {
+                        return refreshClasspathContainers(key, repoRoot, monitor);
+                    } catch (final CoreException e) {
+                        return e.getStatus();
+                    }
+                }
+
+                @Override
+                public boolean belongsTo(Object family) {
+                    return family == JOB_FAMILY;
+                }
+            };
+            job = refreshJob;
+            REFRESH_JOBS.put(key, job);
+            LibraryWatcher.addListener(repoRoot, new LibraryWatcher.Listener() {
+                @Override
+                public void onLibrariesChanged() {
+                    // Scheduling a running job makes it run once more when
+                    // it is done, so updates never overlap
+                    refreshJob.schedule();
+                }
+            });
+            // Until the job is done the containers have the persisted entries
+            refreshJob.schedule();
+            return job;
+        }
+    }
+
+    /**
+     * Cancel all refresh jobs, e.g. when the plugin is stopped
+     */
+    public static void cancelRefreshJobs() {
+        Job.getJobManager().cancel(JOB_FAMILY);
+    }
+
+    /**
+     * Search the file system for libraries and update the containers with a
+     * refresh key whose libraries have been added or removed. The other
+     * containers are left alone.
+     */
+    private IStatus refreshClasspathContainers(String key, IPath repoRoot,
+            IProgressMonitor monitor) throws CoreException {
+        final List<IPath> containerPaths = new ArrayList<IPath>();
+        for (final String path : containers.keySet()) {
+            final IPath containerPath = new Path(path);
+            if (key.equals(getRefreshKey(containerPath))) {
+                containerPaths.add(containerPath);
+            }
+        }
+        if (containerPaths.isEmpty()) {
+            return Status.OK_STATUS;
+        }
+        final Map<IPath, List<File>> libraries = findLibraries(repoRoot, containerPaths);
+        librariesFound(key, repoRoot, libraries, monitor);
+        for (final IPath containerPath : containerPaths) {
+            if (monitor.isCanceled()) {
+                return Status.CANCEL_STATUS;
+            }
+            List<File> libs = libraries.get(containerPath);
+            if (libs == null) {
+                libs = new ArrayList<File>();
+            }
+            refreshClasspathContainer(containerPath, libs, monitor);
+        }
+        return Status.OK_STATUS;
+    }
+
+    /**
+     * Update one container and every project using it, but only if its
+     * libraries have changed. A container updated by the user meanwhile is
+     * refreshed again, so the user's changes are kept.
+     */
+    private void refreshClasspathContainer(IPath containerPath, List<File> libs,
+            IProgressMonitor monitor) throws CoreException {
+        final String key = containerPath.toString();
+        // Set when the user updated the container while it was being set, the
+        // projects must get the user's container back even if it is up to date
+        boolean reapply = false;
+        while (true) {
+            final Future<C> current = containers.get(key);
+            if (current == null) {
+                return;
+            }
+            C container = get(current);
+            final IClasspathEntry[] entries = AndroidClasspathContainer.refreshEntries(
+                    getRepoRoot(containerPath), container.getClasspathEntries(), libs);
+            Future<C> future = current;
+            if (entries != null) {
+                final C refreshed = createContainer(containerPath, entries);
+                future = loaded(refreshed);
+                if (!containers.replace(key, current, future)) {
+                    // Updated by the user meanwhile, refresh the updated
+                    // container so the user's changes are kept
+                    continue;
+                }
+                container = refreshed;
+            } else if (!reapply) {
+                return;
+            }
+            final IJavaProject[] projects = getProjects(containerPath);
+            if (projects.length == 0) {
+                return;
+            }
+            final IClasspathContainer[] updated = new IClasspathContainer[projects.length];
+            Arrays.fill(updated, container);
+            JavaCore.setClasspathContainer(containerPath, projects, updated, monitor);
+            if (containers.get(key) == future) {
+                ClasspathContainerStore.save(projects[0], containerPath,
+                        container.getClasspathEntries());
+                return;
+            }
+            reapply = true;
+        }
+    }
+
+    /**
+     * Returns all java projects in the workspace that have the container on
+     * their classpath
+     */
+    static IJavaProject[] getProjects(IPath containerPath) throws JavaModelException {
+        final List<IJavaProject> projects = new ArrayList<IJavaProject>();
+        final IJavaModel model = JavaCore.create(ResourcesPlugin.getWorkspace().getRoot());
+        for (final IJavaProject project : model.getJavaProjects()) {
+            for (final IClasspathEntry entry : project.getRawClasspath()) {
+                if (entry.getEntryKind() == IClasspathEntry.CPE_CONTAINER
+                        && containerPath.equals(entry.getPath())) {
+                    projects.add(project);
+                    break;
+                }
+            }
+        }
+        return projects.toArray(new IJavaProject[projects.size()]);
+    }
+
+    @Override
+    public boolean canUpdateClasspathContainer(IPath containerPath, IJavaProject project) {
+        return true;
+    }
+
+    @Override
+    public void requestClasspathContainerUpdate(IPath containerPath, IJavaProject project,
+            IClasspathContainer containerSuggestion) throws CoreException {
+        // Make sure the libraries are watched
+        getContainer(containerPath, project);
+        // Replace the container rather than changing it, a refresh running
+        // meanwhile must see that its container is outdated
+        final C container = createContainer(containerPath,
+                containerSuggestion.getClasspathEntries());
+        containers.put(containerPath.toString(), loaded(container));
+        JavaCore.setClasspathContainer(containerPath, new IJavaProject[] {
+                project
+        }, new IClasspathContainer[] {
+                containerSuggestion
+        }, new NullProgressMonitor());
+        try {
+            ClasspathContainerStore.save(project, containerPath,
+                    container.getClasspathEntries());
+        } catch (final CoreException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,270 @@
+/**
+ * Copyright 2012 Martin Wallgren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.wallgren.android.platform;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.jface.preference.IPreferenceStore;
+
+/**
+ * Selects the libraries to put on the classpath among the jars the build
+ * produces.
+ *
+ * A module may produce several jars. The first jar in the module's
+ * preference list that contains class files is used (javalib.jar of a target
+ * library only has dex code). The default preference can be overridden per
+ * module with the {@link #PREFERENCE_KEY} preference, e.g.
+ * "framework=classes.jar;core=classes-full-debug.jar,classes.jar".
+ *
+ * Jars whose classes are all found in other selected jars, e.g. static
+ * libraries bundled into packages, are dropped. Only the central directory
+ * of each jar is read to find its classes.
+ */
+public class LibrarySelector {
+    public static final String PREFERENCE_KEY = "libraryPreference";
+
+    private static final List<String> DEFAULT_PREFERENCE = Arrays.asList(
+            "classes-full-debug.jar", "classes.jar", "javalib.jar");
+    private static final String INTERMEDIATES_SUFFIX = "_intermediates";
+
+    private final List<String> defaultPreference;
+    private final Map<String, List<String>> modulePreferences;
+
+    public LibrarySelector(List<String> defaultPreference,
+            Map<String, List<String>> modulePreferences) {
+        this.defaultPreference = defaultPreference;
+        this.modulePreferences = modulePreferences;
+    }
+
+    /**
+     * Returns a selector with the default preference and the per module
+     * preferences of the plugin
+     */
+    public static LibrarySelector getDefault() {
+        final Map<String, List<String>> modulePreferences = new HashMap<String, List<String>>();
+        final Activator activator = Activator.getDefault();
+        if (activator != null) {
+            final IPreferenceStore store = activator.getPreferenceStore();
+            for (final String module : store.getString(PREFERENCE_KEY).split(";")) {
+                final int separator = module.indexOf('=');
+                if (separator > 0) {
+                    modulePreferences.put(module.substring(0, separator).trim(),
+                            split(module.substring(separator + 1)));
+                }
+            }
+        }
+        return new LibrarySelector(DEFAULT_PREFERENCE, modulePreferences);
+    }
+
+    private static List<String> split(String names) {
+        final List<String> list = new ArrayList<String>();
+        for (final String name : names.split(",")) {
+            if (name.trim().length() > 0) {
+                list.add(name.trim());
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Returns the names of all jars that may be selected, i.e. the jars to
+     * search for
+     */
+    public Set<String> getLibraryNames() {
+        final Set<String> names = new LinkedHashSet<String>(defaultPreference);
+        for (final List<String> preference : modulePreferences.values()) {
+            names.addAll(preference);
+        }
+        return names;
+    }
+
+    /**
+     * Select one jar per module folder and drop the jars that are shadowed
+     * by the others.
+     *
+     * @param candidates the jars found, in classpath order
+     * @return the selected jars, in the same order
+     */
+    public List<File> select(List<File> candidates) {
+        return select(candidates, new HashMap<File, Set<String>>());
+    }
+
+    /**
+     * Like {@link #select(List)}, but the classes of the jars are taken from
+     * an index instead of reading the jars when possible
+     */
+    public List<File> select(List<File> candidates, PackageIndex index) {
+        return select(candidates, getClasses(candidates, index));
+    }
+
+    private List<File> select(List<File> candidates, Map<File, Set<String>> classes) {
+        final Map<File, List<File>> byModule = new LinkedHashMap<File, List<File>>();
+        for (final File jar : candidates) {
+            List<File> jars = byModule.get(jar.getParentFile());
+            if (jars == null) {
+                jars = new ArrayList<File>();
+                byModule.put(jar.getParentFile(), jars);
+            }
+            jars.add(jar);
+        }
+
+        final List<File> selected = new ArrayList<File>();
+        for (final Map.Entry<File, List<File>> module : byModule.entrySet()) {
+            final File jar = choose(module.getKey(), module.getValue(), classes);
+            if (jar != null) {
+                selected.add(jar);
+            }
+        }
+        return removeShadowed(selected, classes);
+    }
+
+    /**
+     * Returns the preferred jar in a module folder
+     *
+     * @return the jar or null if there is no jar with classes
+     */
+    public File choose(File moduleDir) {
+        final List<File> jars = new ArrayList<File>();
+        for (final String name : getPreference(moduleDir)) {
+            final File jar = new File(moduleDir, name);
+            if (jar.isFile()) {
+                jars.add(jar);
+            }
+        }
+        return choose(moduleDir, jars, new HashMap<File, Set<String>>());
+    }
+
+    /**
+     * Drop the jars whose classes are all in other jars. Large jars are kept
+     * first, so a static library is dropped in favor of the package it is
+     * bundled in, not the other way around.
+     *
+     * @return the remaining jars, in the same order
+     */
+    public List<File> removeShadowed(List<File> jars) {
+        return removeShadowed(jars, new HashMap<File, Set<String>>());
+    }
+
+    /**
+     * Like {@link #removeShadowed(List)}, but the classes of the jars are
+     * taken from an index instead of reading the jars when possible
+     */
+    public List<File> removeShadowed(List<File> jars, PackageIndex index) {
+        return removeShadowed(jars, getClasses(jars, index));
+    }
+
+    /**
+     * Returns the classes of the jars that are in the index
+     */
+    private static Map<File, Set<String>> getClasses(List<File> jars, PackageIndex index) {
+        final Map<File, Set<String>> classes = new HashMap<File, Set<String>>();
+        for (final File jar : jars) {
+            final Set<String> jarClasses = index.getClasses(jar);
+            if (jarClasses != null) {
+                classes.put(jar, jarClasses);
+            }
+        }
+        return classes;
+    }
+
+    private File choose(File moduleDir, List<File> jars, Map<File, Set<String>> classes) {
+        File chosen = null;
+        int chosenRank = Integer.MAX_VALUE;
+        final List<String> preference = getPreference(moduleDir);
+        for (final File jar : jars) {
+            int rank = preference.indexOf(jar.getName());
+            if (rank < 0) {
+                rank = preference.size();
+            }
+            if (rank < chosenRank && !getClasses(jar, classes).isEmpty()) {
+                chosen = jar;
+                chosenRank = rank;
+            }
+        }
+        return chosen;
+    }
+
+    private List<String> getPreference(File moduleDir) {
+        final String name = moduleDir.getName();
+        if (name.endsWith(INTERMEDIATES_SUFFIX)) {
+            final List<String> preference = modulePreferences.get(name.substring(0,
+                    name.length() - INTERMEDIATES_SUFFIX.length()));
+            if (preference != null) {
+                return preference;
+            }
+        }
+        return defaultPreference;
+    }
+
+    private List<File> removeShadowed(List<File> jars, final Map<File, Set<String>> classes) {
+        final List<File> bySize = new ArrayList<File>(jars);
+        Collections.sort(bySize, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                return getClasses(rhs, classes).size() - getClasses(lhs, classes).size();
+            }
+        });
+        final Set<String> found = new HashSet<String>();
+        final Set<File> kept = new HashSet<File>();
+        for (final File jar : bySize) {
+            final Set<String> jarClasses = getClasses(jar, classes);
+            // A jar without classes (unreadable or dex only) is of no use
+            if (!found.containsAll(jarClasses)) {
+                found.addAll(jarClasses);
+                kept.add(jar);
+            }
+        }
+        final List<File> result = new ArrayList<File>(kept.size());
+        for (final File jar : jars) {
+            if (kept.contains(jar)) {
+                result.add(jar);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the class files in a jar
+     */
+    private static Set<String> getClasses(File jar, Map<File, Set<String>> cache) {
+        Set<String> classes = cache.get(jar);
+        if (classes != null) {
+            return classes;
+        }
+        try {
+            classes = PackageIndex.readClasses(jar);
+        } catch (final IOException e) {
+            // Not a valid jar, nothing JDT can use
+            e.printStackTrace();
+            classes = Collections.emptySet();
+        }
+        cache.put(jar, classes);
+        return classes;
+    }
+}
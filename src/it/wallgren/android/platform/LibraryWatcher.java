@@ -0,0 +1,338 @@
+/**
+ * Copyright 2012 Martin Wallgren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.wallgren.android.platform;
+
+import it.wallgren.android.platform.project.ModuleGraph;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.IStatus;
+
+/**
+ * Watches the intermediates folders of a repo for added and removed modules
+ * and libraries. There is one watcher per repo, shared by all containers of
+ * the repo.
+ *
+ * The watch service is not recursive, so the JAVA_LIBRARIES and APPS folders
+ * and every module folder directly below them are watched. That is where the
+ * build puts the libraries, any of the names {@link LibrarySelector} picks
+ * from. Until both intermediates folders exist, e.g. before the first build
+ * or after make clean, the nearest existing folder above them is watched so
+ * they are picked up when the build creates them.
+ *
+ * Events are coalesced: the listeners are not called until the folders have
+ * been quiet for a while, so a full build results in a single update when it
+ * is done instead of one per module.
+ */
+public class LibraryWatcher implements Runnable {
+    private static final long QUIET_PERIOD = 2000;
+    private static final String INTERMEDIATES = "out/target/common/obj";
+    private static final String[] INTERMEDIATES_FOLDERS = {
+            "JAVA_LIBRARIES", "APPS"
+    };
+
+    private static final Map<IPath, LibraryWatcher> WATCHERS =
+            new HashMap<IPath, LibraryWatcher>();
+
+    public interface Listener {
+        /**
+         * Called on the watcher thread when modules or libraries have been
+         * added or removed.
+         */
+        public void onLibrariesChanged();
+    }
+
+    private final IPath repoRoot;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    private WatchService watchService;
+    private Thread thread;
+
+    // Only used on the watcher thread
+    private final Map<Path, WatchKey> keys = new HashMap<Path, WatchKey>();
+    private Path ancestor;
+
+    private LibraryWatcher(IPath repoRoot) {
+        this.repoRoot = repoRoot;
+    }
+
+    /**
+     * Call a listener whenever the build adds or removes libraries in a repo.
+     * The repo is watched from the first call on.
+     */
+    public static void addListener(IPath repoRoot, Listener listener) {
+        synchronized (WATCHERS) {
+            LibraryWatcher watcher = WATCHERS.get(repoRoot);
+            if (watcher == null) {
+                watcher = new LibraryWatcher(repoRoot);
+                WATCHERS.put(repoRoot, watcher);
+                watcher.start();
+            }
+            watcher.listeners.add(listener);
+        }
+    }
+
+    /**
+     * Stop watching all repos
+     */
+    public static void stopAll() {
+        synchronized (WATCHERS) {
+            for (final LibraryWatcher watcher : WATCHERS.values()) {
+                watcher.stop();
+            }
+            WATCHERS.clear();
+        }
+    }
+
+    private synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        thread = new Thread(this, "Library watcher " + repoRoot.lastSegment());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private synchronized void stop() {
+        if (thread == null) {
+            return;
+        }
+        thread.interrupt();
+        thread = null;
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (final IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            synchronized (this) {
+                if (thread != Thread.currentThread()) {
+                    // Stopped before we got started
+                    return;
+                }
+                watchService = FileSystems.getDefault().newWatchService();
+            }
+            registerAll();
+
+            while (!Thread.currentThread().isInterrupted()) {
+                boolean changed = handle(watchService.take());
+                // Wait for the build to settle down before we report anything
+                WatchKey key;
+                while ((key = watchService.poll(QUIET_PERIOD, TimeUnit.MILLISECONDS)) != null) {
+                    changed |= handle(key);
+                }
+                if (changed) {
+                    // Modules have been built, there may be new ones
+                    ModuleGraph.invalidate(repoRoot.toFile());
+                    for (final Listener listener : listeners) {
+                        listener.onLibrariesChanged();
+                    }
+                }
+            }
+        } catch (final InterruptedException e) {
+            // Stopped
+        } catch (final ClosedWatchServiceException e) {
+            // Stopped
+        } catch (final IOException e) {
+            // Without a watch service changes are picked up on restart only
+            Activator.log(IStatus.WARNING, "Can't watch the libraries of " + repoRoot, e);
+        }
+    }
+
+    /**
+     * Watch the intermediates folders that exist and are not watched yet.
+     * While one of them is missing the nearest existing folder above them is
+     * watched too.
+     *
+     * @return true if an intermediates folder was found, it may already have
+     *         libraries
+     */
+    private boolean registerAll() throws IOException {
+        final Path root = repoRoot.toFile().toPath();
+        final Path intermediates = root.resolve(INTERMEDIATES);
+        boolean added = false;
+        while (true) {
+            boolean missing = false;
+            for (final String name : INTERMEDIATES_FOLDERS) {
+                final Path dir = intermediates.resolve(name);
+                if (!keys.containsKey(dir)) {
+                    if (register(dir)) {
+                        added = true;
+                    } else {
+                        missing = true;
+                    }
+                }
+            }
+            Path nearest = null;
+            if (missing) {
+                nearest = intermediates;
+                while (!Files.isDirectory(nearest) && !nearest.equals(root)) {
+                    nearest = nearest.getParent();
+                }
+            }
+            if (Objects.equals(nearest, ancestor)) {
+                return added;
+            }
+            if (ancestor != null) {
+                unwatch(ancestor);
+            }
+            ancestor = nearest;
+            if (nearest != null && !watch(nearest)) {
+                // Removed meanwhile, look again
+                ancestor = null;
+            }
+            // Look again, the folders may have been created before the
+            // ancestor was watched
+        }
+    }
+
+    /**
+     * Watch an intermediates folder and all module folders in it
+     *
+     * @return false if the folder doesn't exist
+     */
+    private boolean register(Path dir) throws IOException {
+        if (!watch(dir)) {
+            return false;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (final Path module : stream) {
+                if (Files.isDirectory(module)) {
+                    watch(module);
+                }
+            }
+        } catch (final NoSuchFileException e) {
+            // Removed meanwhile, the key tells us
+        }
+        return true;
+    }
+
+    /**
+     * @return false if the folder doesn't exist
+     */
+    private boolean watch(Path dir) throws IOException {
+        try {
+            keys.put(dir, dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY));
+            return true;
+        } catch (final NoSuchFileException e) {
+            return false;
+        } catch (final NotDirectoryException e) {
+            return false;
+        }
+    }
+
+    private void unwatch(Path dir) {
+        final WatchKey key = keys.remove(dir);
+        if (key != null) {
+            key.cancel();
+        }
+    }
+
+    /**
+     * @return true if the events may have added, removed or updated a library
+     */
+    private boolean handle(WatchKey key) throws IOException {
+        final Path dir = (Path) key.watchable();
+        if (keys.get(dir) != key) {
+            // Canceled, or the folder has been removed and watched again
+            key.pollEvents();
+            return false;
+        }
+        boolean changed = false;
+        if (dir.equals(ancestor)) {
+            // Only tells us to look for the intermediates folders again
+            key.pollEvents();
+        } else {
+            changed = handle(dir, key.pollEvents());
+        }
+        if (!key.reset()) {
+            // Removed, e.g. by make clean. Watched again when it is created.
+            keys.remove(dir);
+            if (dir.equals(ancestor)) {
+                ancestor = null;
+            } else {
+                changed = true;
+            }
+        }
+        return registerAll() || changed;
+    }
+
+    private boolean handle(Path dir, List<WatchEvent<?>> events) throws IOException {
+        final boolean intermediates = isIntermediatesFolder(dir);
+        // Read every time, the names depend on the preferences
+        final Set<String> libraryNames = LibrarySelector.getDefault().getLibraryNames();
+        boolean changed = false;
+        for (final WatchEvent<?> event : events) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                changed = true;
+                continue;
+            }
+            final Path child = dir.resolve((Path) event.context());
+            if (intermediates) {
+                if (event.kind() == StandardWatchEventKinds.ENTRY_MODIFY) {
+                    // Something changed inside a module folder, the events
+                    // of the module folder itself tell us what
+                    continue;
+                }
+                // A module was added or removed
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                    // Removed again before we got to it if it isn't there
+                    watch(child);
+                }
+                changed = true;
+            } else if (libraryNames.contains(child.getFileName().toString())) {
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private boolean isIntermediatesFolder(Path dir) {
+        final Path intermediates = repoRoot.toFile().toPath().resolve(INTERMEDIATES);
+        for (final String name : INTERMEDIATES_FOLDERS) {
+            if (dir.equals(intermediates.resolve(name))) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
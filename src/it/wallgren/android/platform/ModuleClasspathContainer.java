@@ -0,0 +1,121 @@
+/**
+ * Copyright 2012 Martin Wallgren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.wallgren.android.platform;
+
+import it.wallgren.android.platform.project.ModuleGraph;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.Path;
+import org.eclipse.jdt.core.IClasspathContainer;
+import org.eclipse.jdt.core.IClasspathEntry;
+
+/**
+ * The libraries one module is built against, i.e. the transitive closure of
+ * its LOCAL_JAVA_LIBRARIES and LOCAL_STATIC_JAVA_LIBRARIES. Much smaller than
+ * {@link AndroidClasspathContainer}, which has every library in the repo.
+ *
+ * The container path is the container id, the module name and the repo root.
+ */
+public class ModuleClasspathContainer implements IClasspathContainer {
+    public static final String ID =
+            "it.wallgren.android.platform.moduleClasspathContainerInitializer";
+
+    private final String module;
+    private final IPath repoRoot;
+
+    private IClasspathEntry[] entries;
+    private final Object lock = new Object();
+
+    /**
+     * Create a container that searches for the libraries when its entries are
+     * first asked for
+     */
+    public ModuleClasspathContainer(String module, IPath repoRoot) {
+        this(module, repoRoot, null);
+    }
+
+    /**
+     * Create a container with the given entries
+     */
+    public ModuleClasspathContainer(String module, IPath repoRoot, IClasspathEntry[] entries) {
+        this.module = module;
+        this.repoRoot = repoRoot;
+        this.entries = entries;
+    }
+
+    /**
+     * Returns the path of the container for a module
+     */
+    public static IPath getPath(String module, IPath repoRoot) {
+        return new Path(ID).append(module).append(repoRoot.makeAbsolute());
+    }
+
+    @Override
+    public IClasspathEntry[] getClasspathEntries() {
+        IClasspathEntry[] current;
+        synchronized (lock) {
+            current = entries;
+        }
+        if (current == null) {
+            // Search without holding the lock, as AndroidClasspathContainer
+            final ModuleGraph graph = ModuleGraph.get(repoRoot.toFile());
+            final PackageIndex index = PackageIndex.get(repoRoot);
+            final List<File> libs = getLibraries(graph, index, module);
+            final IClasspathEntry[] found = new IClasspathEntry[libs.size()];
+            int i = 0;
+            for (final File jar : libs) {
+                found[i++] = AndroidClasspathContainer.createEntry(repoRoot, graph, jar);
+            }
+            synchronized (lock) {
+                if (entries == null) {
+                    entries = found;
+                }
+                current = entries;
+            }
+        }
+        return Arrays.copyOf(current, current.length);
+    }
+
+    /**
+     * Returns the libraries a module is built against. The jars are added to
+     * the index if they are not in it.
+     */
+    static List<File> getLibraries(ModuleGraph graph, PackageIndex index, String module) {
+        final List<File> libs = graph.getLibraries(module);
+        index.add(libs);
+        return LibrarySelector.getDefault().removeShadowed(libs, index);
+    }
+
+    @Override
+    public String getDescription() {
+        return module + " - java dependencies";
+    }
+
+    @Override
+    public int getKind() {
+        return K_SYSTEM;
+    }
+
+    @Override
+    public IPath getPath() {
+        return getPath(module, repoRoot);
+    }
+}
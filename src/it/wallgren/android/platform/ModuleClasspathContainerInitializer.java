@@ -0,0 +1,87 @@
+/**
+ * Copyright 2012 Martin Wallgren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.wallgren.android.platform;
+
+import it.wallgren.android.platform.project.ModuleGraph;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.jdt.core.IClasspathEntry;
+import org.eclipse.jdt.core.IJavaProject;
+
+/**
+ * Initializes {@link ModuleClasspathContainer}s.
+ *
+ * The containers of all modules of a repo are refreshed together, and only
+ * the containers whose libraries changed are updated.
+ */
+public class ModuleClasspathContainerInitializer extends
+        LibraryContainerInitializer<ModuleClasspathContainer> {
+    private static final ConcurrentMap<String, Future<ModuleClasspathContainer>> CONTAINERS =
+            new ConcurrentHashMap<String, Future<ModuleClasspathContainer>>();
+
+    public ModuleClasspathContainerInitializer() {
+        super(CONTAINERS);
+    }
+
+    @Override
+    public void initialize(IPath containerPath, IJavaProject project) throws CoreException {
+        if (containerPath.segmentCount() < 3) {
+            // Not a path we created
+            return;
+        }
+        super.initialize(containerPath, project);
+    }
+
+    @Override
+    protected IPath getRepoRoot(IPath containerPath) {
+        return containerPath.removeFirstSegments(2).makeAbsolute();
+    }
+
+    @Override
+    protected String getRefreshKey(IPath containerPath) {
+        return ModuleClasspathContainer.ID + getRepoRoot(containerPath);
+    }
+
+    @Override
+    protected ModuleClasspathContainer createContainer(IPath containerPath,
+            IClasspathEntry[] entries) {
+        return new ModuleClasspathContainer(containerPath.segment(1), getRepoRoot(containerPath),
+                entries);
+    }
+
+    @Override
+    protected Map<IPath, List<File>> findLibraries(IPath repoRoot, List<IPath> containerPaths) {
+        final ModuleGraph graph = ModuleGraph.get(repoRoot.toFile());
+        final PackageIndex index = PackageIndex.get(repoRoot);
+        final Map<IPath, List<File>> libraries = new HashMap<IPath, List<File>>();
+        for (final IPath containerPath : containerPaths) {
+            libraries.put(containerPath, ModuleClasspathContainer.getLibraries(graph, index,
+                    containerPath.segment(1)));
+        }
+        index.save();
+        return libraries;
+    }
+}
@@ -23,13 +23,22 @@ import it.wallgren.android.platform.project.AndroidProject;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.eclipse.core.resources.IWorkspace;
 import org.eclipse.core.resources.IWorkspaceDescription;
+import org.eclipse.core.resources.IWorkspaceRunnable;
 import org.eclipse.core.resources.ResourcesPlugin;
 import org.eclipse.core.runtime.CoreException;
 import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.NullProgressMonitor;
+import org.eclipse.core.runtime.SubMonitor;
 import org.eclipse.jface.operation.IRunnableWithProgress;
 import org.eclipse.jface.viewers.IStructuredSelection;
 import org.eclipse.jface.wizard.Wizard;
@@ -66,40 +75,38 @@ public class NewProjectWizard extends Wizard implements INewWizard {
 
     @Override
     public boolean performFinish() {
+        final List<AndroidProject> projects = page2.getSelectedProjects();
         try {
-            getContainer().run(false, true, new IRunnableWithProgress() {
+            getContainer().run(true, true, new IRunnableWithProgress() {
                 @Override
                 public void run(IProgressMonitor monitor) throws InvocationTargetException,
                 InterruptedException {
                     final IWorkspace workspace = ResourcesPlugin.getWorkspace();
-                    boolean autobuild = workspace.isAutoBuilding();
+                    final boolean autobuild = workspace.isAutoBuilding();
                     try {
                         if (autobuild) {
                             // Disable auto build during project setup.
-                            final IWorkspaceDescription wsDescription = workspace.getDescription();
-                            autobuild = wsDescription.isAutoBuilding();
-                            wsDescription.setAutoBuilding(false);
-                            workspace.setDescription(wsDescription);
+                            setAutoBuilding(workspace, false);
                         }
-                        final List<AndroidProject> projects = page2.getSelectedProjects();
-                        monitor.beginTask("Creating projects", projects.size());
-                        for (final AndroidProject androidProject : projects) {
-                            monitor.subTask(androidProject.getName());
-                            androidProject.create(monitor);
-                            monitor.worked(1);
-                        }
-                        monitor.done();
-                        if (autobuild) {
-                            // re-enable auto build
-                            final IWorkspaceDescription wsDescription = workspace.getDescription();
-                            wsDescription.setAutoBuilding(true);
-                            workspace.setDescription(wsDescription);
+                        try {
+                            final SubMonitor progress = SubMonitor.convert(monitor,
+                                    "Creating projects", projects.size() * 2);
+                            prepareProjects(projects, progress.split(projects.size()));
+                            createProjects(projects, progress.split(projects.size()));
+                        } finally {
+                            if (autobuild) {
+                                // re-enable auto build, also when canceled
+                                setAutoBuilding(workspace, true);
+                            }
                         }
                     } catch (final CoreException e) {
                         throw new InvocationTargetException(e);
                     }
                 }
             });
+        } catch (final InterruptedException e) {
+            // Canceled by the user
+            return false;
         } catch (final Exception e1) {
             // TODO: Better error handling
             final StringWriter sw = new StringWriter();
@@ -112,4 +119,73 @@ public class NewProjectWizard extends Wizard implements INewWizard {
         return true;
     }
 
+    private static void setAutoBuilding(IWorkspace workspace, boolean autobuild)
+            throws CoreException {
+        final IWorkspaceDescription wsDescription = workspace.getDescription();
+        wsDescription.setAutoBuilding(autobuild);
+        workspace.setDescription(wsDescription);
+    }
+
+    /**
+     * Do the file system analysis for all projects in parallel. Nothing in
+     * the workspace is touched.
+     */
+    private void prepareProjects(List<AndroidProject> projects, IProgressMonitor monitor)
+            throws CoreException, InterruptedException {
+        final SubMonitor progress = SubMonitor.convert(monitor, "Analyzing projects",
+                projects.size());
+        final int threads = Runtime.getRuntime().availableProcessors();
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<?>> results = new ArrayList<Future<?>>(projects.size());
+            for (final AndroidProject androidProject : projects) {
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws CoreException {
+                        androidProject.prepare(new NullProgressMonitor());
+                        return null;
+                    }
+                }));
+            }
+            for (final Future<?> result : results) {
+                if (progress.isCanceled()) {
+                    throw new InterruptedException();
+                }
+                try {
+                    result.get();
+                } catch (final ExecutionException e) {
+                    if (e.getCause() instanceof CoreException) {
+                        throw (CoreException) e.getCause();
+                    }
+                    throw new RuntimeException(e.getCause());
+                }
+                progress.worked(1);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Create all projects in one workspace operation so that the resource
+     * changes are reported (and the java model updated) once, when all
+     * projects are done.
+     */
+    private void createProjects(final List<AndroidProject> projects, IProgressMonitor monitor)
+            throws CoreException {
+        final IWorkspace workspace = ResourcesPlugin.getWorkspace();
+        workspace.run(new IWorkspaceRunnable() {
+            @Override
+            public void run(IProgressMonitor monitor) throws CoreException {
+                final SubMonitor progress = SubMonitor.convert(monitor, "Creating projects",
+                        projects.size());
+                for (final AndroidProject androidProject : projects) {
+                    // Throws OperationCanceledException if canceled
+                    final SubMonitor child = progress.split(1);
+                    progress.subTask(androidProject.getName());
+                    androidProject.create(child);
+                }
+            }
+        }, workspace.getRoot(), IWorkspace.AVOID_UPDATE, monitor);
+    }
 }
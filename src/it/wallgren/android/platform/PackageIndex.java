@@ -0,0 +1,258 @@
+/**
+ * Copyright 2012 Martin Wallgren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.wallgren.android.platform;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.IStatus;
+
+/**
+ * Index of the classes in the libraries of a repo, so the libraries of a
+ * container can be selected and the shadowed ones dropped without opening
+ * every jar.
+ *
+ * The classes of a jar are read from its central directory. Jars are read in
+ * parallel, and only if their size or modification time changed since the
+ * index was stored. The index is stored in the plugin state location, one
+ * file per repo. In memory it is only kept as long as there is memory to
+ * spare.
+ */
+public class PackageIndex {
+    private static final int VERSION = 1;
+    private static final String CLASS_SUFFIX = ".class";
+
+    private static final Map<IPath, SoftReference<PackageIndex>> INDEXES =
+            new HashMap<IPath, SoftReference<PackageIndex>>();
+
+    private final StateFile indexFile;
+    private final Map<File, Entry> entries;
+
+    private PackageIndex(StateFile indexFile, Map<File, Entry> entries) {
+        this.indexFile = indexFile;
+        this.entries = entries;
+    }
+
+    /**
+     * Returns the index of a repo. The stored index is loaded the first time,
+     * after that the same index is returned until the garbage collector
+     * needs the memory. The index is kept up to date by the containers of the
+     * repo.
+     */
+    public static PackageIndex get(IPath repoRoot) {
+        synchronized (INDEXES) {
+            final SoftReference<PackageIndex> reference = INDEXES.get(repoRoot);
+            PackageIndex index = reference != null ? reference.get() : null;
+            if (index == null) {
+                index = load(repoRoot);
+                INDEXES.put(repoRoot, new SoftReference<PackageIndex>(index));
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Load the index for a repo. If there is no stored index (or it can't be
+     * read) an empty index is returned.
+     */
+    private static PackageIndex load(IPath repoRoot) {
+        final StateFile indexFile = StateFile.get("packages", repoRoot.makeAbsolute().toString(),
+                ".gz", VERSION, true);
+        final Map<File, Entry> entries = new LinkedHashMap<File, Entry>();
+        if (indexFile != null) {
+            // Without an index the jars will be read again
+            indexFile.read(new StateFile.Reader<Void>() {
+                @Override
+                public Void read(DataInputStream in) throws IOException {
+                    final Map<File, Entry> read = new LinkedHashMap<File, Entry>();
+                    final int size = in.readInt();
+                    for (int i = 0; i < size; i++) {
+                        final File jar = new File(in.readUTF());
+                        read.put(jar, Entry.read(in));
+                    }
+                    entries.putAll(read);
+                    return null;
+                }
+            });
+        }
+        return new PackageIndex(indexFile, entries);
+    }
+
+    /**
+     * Index the given jars. Jars that are unchanged since they were indexed
+     * are not read again, jars not in the list are dropped from the index. If
+     * interrupted the index is left as it was.
+     */
+    public synchronized void update(List<File> jars) {
+        final Map<File, Entry> updated = index(jars);
+        if (updated != null) {
+            entries.clear();
+            entries.putAll(updated);
+        }
+    }
+
+    /**
+     * Index the given jars if they are not indexed or have changed. The
+     * other jars in the index are kept. If interrupted the index is left as
+     * it was.
+     */
+    public synchronized void add(List<File> jars) {
+        final Map<File, Entry> updated = index(jars);
+        if (updated != null) {
+            entries.putAll(updated);
+        }
+    }
+
+    /**
+     * Returns the entries of the jars, read again if they changed since they
+     * were indexed. Jars that can't be read are left out.
+     *
+     * @return the entries, or null if interrupted
+     */
+    private Map<File, Entry> index(List<File> jars) {
+        final Map<File, Entry> updated = new LinkedHashMap<File, Entry>();
+        final Map<File, Future<Entry>> reading = new LinkedHashMap<File, Future<Entry>>();
+        for (final File jar : jars) {
+            final Entry entry = entries.get(jar);
+            if (entry != null && entry.size == jar.length()
+                    && entry.mtime == jar.lastModified()) {
+                updated.put(jar, entry);
+                continue;
+            }
+            reading.put(jar, SharedPool.get().submit(new Callable<Entry>() {
+                @Override
+                public Entry call() throws Exception {
+                    return new Entry(jar.length(), jar.lastModified(), readClasses(jar));
+                }
+            }));
+        }
+        for (final Map.Entry<File, Future<Entry>> result : reading.entrySet()) {
+            try {
+                updated.put(result.getKey(), result.getValue().get());
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                // The pool is shared, drop the reads that have not started
+                for (final Future<Entry> pending : reading.values()) {
+                    pending.cancel(false);
+                }
+                return null;
+            } catch (final ExecutionException e) {
+                // Leave the jar out of the index
+                Activator.log(IStatus.WARNING, "Can't read " + result.getKey(), e.getCause());
+            }
+        }
+        return updated;
+    }
+
+    /**
+     * Returns the class files of an indexed jar, e.g. android/app/Activity.class
+     *
+     * @return the classes or null if the jar is not indexed
+     */
+    public synchronized Set<String> getClasses(File jar) {
+        final Entry entry = entries.get(jar);
+        return entry != null ? entry.classes : null;
+    }
+
+    /**
+     * Write the index
+     */
+    public synchronized void save() {
+        if (indexFile == null) {
+            return;
+        }
+        indexFile.write(new StateFile.Writer() {
+            @Override
+            public void write(DataOutputStream out) throws IOException {
+                out.writeInt(entries.size());
+                for (final Map.Entry<File, Entry> entry : entries.entrySet()) {
+                    out.writeUTF(entry.getKey().getPath());
+                    entry.getValue().write(out);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the class files in a jar, read from its central directory
+     */
+    static Set<String> readClasses(File jar) throws IOException {
+        final Set<String> classes = new HashSet<String>();
+        try (ZipFile zip = new ZipFile(jar)) {
+            final Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                final String name = entries.nextElement().getName();
+                if (name.endsWith(CLASS_SUFFIX)) {
+                    classes.add(name);
+                }
+            }
+        }
+        return classes;
+    }
+
+    /**
+     * The indexed content of one jar
+     */
+    private static class Entry {
+        final long size;
+        final long mtime;
+        final Set<String> classes;
+
+        Entry(long size, long mtime, Set<String> classes) {
+            this.size = size;
+            this.mtime = mtime;
+            this.classes = Collections.unmodifiableSet(classes);
+        }
+
+        static Entry read(DataInputStream in) throws IOException {
+            final long size = in.readLong();
+            final long mtime = in.readLong();
+            final int count = in.readInt();
+            final Set<String> classes = new HashSet<String>(count * 2);
+            for (int i = 0; i < count; i++) {
+                classes.add(in.readUTF());
+            }
+            return new Entry(size, mtime, classes);
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeLong(size);
+            out.writeLong(mtime);
+            out.writeInt(classes.size());
+            for (final String classFile : classes) {
+                out.writeUTF(classFile);
+            }
+        }
+    }
+}
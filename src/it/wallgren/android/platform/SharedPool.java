@@ -0,0 +1,43 @@
+/**
+ * Copyright 2012 Martin Wallgren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.wallgren.android.platform;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * The work stealing pool the file system walks and jar reads of the plugin
+ * run on.
+ *
+ * Walks started from several threads at once share it, so the number of
+ * threads stays at one per core.
+ */
+public class SharedPool {
+    private static ForkJoinPool pool;
+
+    private SharedPool() {
+    }
+
+    /**
+     * Returns the pool, created the first time
+     */
+    public static synchronized ForkJoinPool get() {
+        if (pool == null) {
+            pool = new ForkJoinPool();
+        }
+        return pool;
+    }
+}
@@ -0,0 +1,182 @@
+/**
+ * Copyright 2012 Martin Wallgren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.wallgren.android.platform;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.eclipse.core.runtime.IStatus;
+
+/**
+ * A file in the plugin state location holding data that can be recreated
+ * from the file system, e.g. an index or a cache.
+ *
+ * The file is named by a hash of the key the data is about, e.g. the repo
+ * root, and starts with a version and the key. A file of another version or
+ * key is ignored. A file that can't be read is no worse than no file, the
+ * data is recreated.
+ * Files are written to a temporary file that is moved into place, so a
+ * reader never sees a partially written file.
+ */
+public class StateFile {
+    /**
+     * Writes the data, after the header
+     */
+    public interface Writer {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Reads the data written by a {@link Writer}
+     */
+    public interface Reader<T> {
+        T read(DataInputStream in) throws IOException;
+    }
+
+    private final File file;
+    private final String key;
+    private final int version;
+    private final boolean compressed;
+
+    private StateFile(File file, String key, int version, boolean compressed) {
+        this.file = file;
+        this.key = key;
+        this.version = version;
+        this.compressed = compressed;
+    }
+
+    /**
+     * @param folder the folder in the state location, one per kind of data
+     * @param key what the data is about, e.g. the repo root. The file name is
+     *            derived from it.
+     * @param suffix the file name suffix
+     * @param compressed true if the file is compressed
+     * @return the file, or null if the plugin is not started
+     */
+    public static StateFile get(String folder, String key, String suffix, int version,
+            boolean compressed) {
+        final Activator activator = Activator.getDefault();
+        if (activator == null) {
+            return null;
+        }
+        final String name = hash(key) + suffix;
+        return new StateFile(activator.getStateLocation().append(folder).append(name).toFile(),
+                key, version, compressed);
+    }
+
+    /**
+     * Returns the SHA-1 of a key as 40 hex digits. Unlike hashCode it does
+     * not collide for the hundreds of keys of a repo.
+     */
+    private static String hash(String key) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1").digest(
+                    key.getBytes(StandardCharsets.UTF_8));
+            return String.format("%040x", new BigInteger(1, digest));
+        } catch (final NoSuchAlgorithmException e) {
+            // Every Java platform has SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public boolean exists() {
+        return file.isFile();
+    }
+
+    /**
+     * @return the data, or null if there is no file, it has another version
+     *         or it can't be read
+     */
+    public <T> T read(Reader<T> reader) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                open(new FileInputStream(file))))) {
+            if (in.readInt() != version || !key.equals(in.readUTF())) {
+                return null;
+            }
+            return reader.read(in);
+        } catch (final IOException e) {
+            Activator.log(IStatus.WARNING, "Can't read " + file, e);
+            return null;
+        } catch (final RuntimeException e) {
+            // Corrupt, e.g. a negative count
+            Activator.log(IStatus.WARNING, "Can't read " + file, e);
+            return null;
+        }
+    }
+
+    private InputStream open(InputStream in) throws IOException {
+        return compressed ? new GZIPInputStream(in) : in;
+    }
+
+    /**
+     * Replace the file
+     *
+     * @return false if the file could not be written
+     */
+    public boolean write(Writer writer) {
+        try {
+            Files.createDirectories(file.getParentFile().toPath());
+            // Unique, the same file may be written by several threads at once
+            final File tmp = Files.createTempFile(file.getParentFile().toPath(),
+                    file.getName(), ".tmp").toFile();
+            try {
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                        create(new FileOutputStream(tmp))))) {
+                    out.writeInt(version);
+                    out.writeUTF(key);
+                    writer.write(out);
+                }
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp.toPath());
+            }
+            return true;
+        } catch (final IOException e) {
+            Activator.log(IStatus.WARNING, "Can't write " + file, e);
+            return false;
+        }
+    }
+
+    private OutputStream create(OutputStream out) throws IOException {
+        return compressed ? new GZIPOutputStream(out) : out;
+    }
+
+    @Override
+    public String toString() {
+        return file.toString();
+    }
+}
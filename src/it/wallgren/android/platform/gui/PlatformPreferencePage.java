@@ -0,0 +1,60 @@
+/**
+ * Copyright 2012 Martin Wallgren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.wallgren.android.platform.gui;
+
+import it.wallgren.android.platform.Activator;
+import it.wallgren.android.platform.GroupClasspathContainer;
+
+import org.eclipse.jface.preference.FieldEditorPreferencePage;
+import org.eclipse.jface.preference.RadioGroupFieldEditor;
+import org.eclipse.ui.IWorkbench;
+import org.eclipse.ui.IWorkbenchPreferencePage;
+
+/**
+ * Preferences of new platform projects
+ */
+public class PlatformPreferencePage extends FieldEditorPreferencePage implements
+        IWorkbenchPreferencePage {
+
+    public PlatformPreferencePage() {
+        super(GRID);
+        setDescription("Applies to platform projects created from now on.");
+    }
+
+    @Override
+    public void init(IWorkbench workbench) {
+        setPreferenceStore(Activator.getDefault().getPreferenceStore());
+        getPreferenceStore().setDefault(GroupClasspathContainer.GRANULARITY_KEY,
+                GroupClasspathContainer.GRANULARITY_REPO);
+    }
+
+    @Override
+    protected void createFieldEditors() {
+        addField(new RadioGroupFieldEditor(GroupClasspathContainer.GRANULARITY_KEY,
+                "Libraries of the platform project", 1, new String[][] {
+                        {
+                                "One container for the whole repo",
+                                GroupClasspathContainer.GRANULARITY_REPO
+                        }, {
+                                "One container per group of modules (framework, core, ...)",
+                                GroupClasspathContainer.GRANULARITY_GROUP
+                        }, {
+                                "One container per module",
+                                GroupClasspathContainer.GRANULARITY_MODULE
+                        }
+                }, getFieldEditorParent()));
+    }
+}
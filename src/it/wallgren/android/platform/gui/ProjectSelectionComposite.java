@@ -16,8 +16,14 @@
 
 package it.wallgren.android.platform.gui;
 
+import it.wallgren.android.platform.project.AndroidProject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.events.SelectionEvent;
@@ -27,12 +33,25 @@ import org.eclipse.swt.layout.FormData;
 import org.eclipse.swt.layout.FormLayout;
 import org.eclipse.swt.widgets.Button;
 import org.eclipse.swt.widgets.Composite;
+import org.eclipse.swt.widgets.Event;
+import org.eclipse.swt.widgets.Listener;
 import org.eclipse.swt.widgets.Table;
 import org.eclipse.swt.widgets.TableItem;
 
+/**
+ * Table of projects to select from.
+ *
+ * The table is virtual, items are only created for the rows that are shown.
+ * The projects and their checked state are kept in the composite so the
+ * selection can be read without touching the items. The checked state is
+ * kept per project, not per row, so inserting rows doesn't move it.
+ */
 public class ProjectSelectionComposite extends Composite {
     private final Table table;
     private final List<CompositeListener> compositeListeners;
+    private final List<AndroidProject> projects = new ArrayList<AndroidProject>();
+    private final Set<AndroidProject> checked = Collections
+            .newSetFromMap(new IdentityHashMap<AndroidProject, Boolean>());
 
     /**
      * Create the composite.
@@ -82,7 +101,8 @@ public class ProjectSelectionComposite extends Composite {
             public void widgetDefaultSelected(SelectionEvent e) {
             }
         });
-        table = new Table(this, SWT.BORDER | SWT.CHECK | SWT.FULL_SELECTION | SWT.HIDE_SELECTION);
+        table = new Table(this, SWT.BORDER | SWT.CHECK | SWT.FULL_SELECTION | SWT.HIDE_SELECTION
+                | SWT.VIRTUAL);
         final FormData fd_table = new FormData();
         fd_table.bottom = new FormAttachment(100, -10);
         fd_table.right = new FormAttachment(100, -10);
@@ -91,9 +111,27 @@ public class ProjectSelectionComposite extends Composite {
         table.setLayoutData(fd_table);
         table.setHeaderVisible(true);
         table.setLinesVisible(true);
+        table.addListener(SWT.SetData, new Listener() {
+            @Override
+            public void handleEvent(Event event) {
+                final TableItem item = (TableItem) event.item;
+                final AndroidProject project = projects.get(event.index);
+                item.setData(project);
+                item.setText(project.getName());
+                item.setChecked(checked.contains(project));
+            }
+        });
         table.addSelectionListener(new SelectionListener() {
             @Override
             public void widgetSelected(SelectionEvent e) {
+                if (e.detail == SWT.CHECK) {
+                    final TableItem item = (TableItem) e.item;
+                    AndroidProject project = (AndroidProject) item.getData();
+                    if (project == null) {
+                        project = projects.get(table.indexOf(item));
+                    }
+                    setChecked(project, item.getChecked());
+                }
                 notifyListeners();
             }
 
@@ -105,19 +143,102 @@ public class ProjectSelectionComposite extends Composite {
     }
 
     protected void setCheckedForAll(boolean checked) {
-        final TableItem[] items = table.getItems();
-        for (final TableItem tableItem : items) {
-            tableItem.setChecked(checked);
+        if (checked) {
+            this.checked.addAll(projects);
+        } else {
+            this.checked.clear();
         }
+        table.clearAll();
         notifyListeners();
     }
 
-    public TableItem[] getItems() {
-        return table.getItems();
+    private void setChecked(AndroidProject project, boolean checked) {
+        if (checked) {
+            this.checked.add(project);
+        } else {
+            this.checked.remove(project);
+        }
+    }
+
+    /**
+     * Insert a project in the table. The project is checked if it is
+     * pre-selected.
+     */
+    public void addProject(int index, AndroidProject project) {
+        projects.add(index, project);
+        setChecked(project, project.preSelected());
+
+        table.setItemCount(projects.size());
+        table.clear(index, projects.size() - 1);
+    }
+
+    /**
+     * Insert projects below the first row, which stays on top, keeping the
+     * rows below it sorted. The table is updated once for the whole batch.
+     * The projects are checked if they are pre-selected.
+     */
+    public void addSortedProjects(List<AndroidProject> added) {
+        if (added.isEmpty()) {
+            return;
+        }
+        final List<AndroidProject> sorted = new ArrayList<AndroidProject>(added);
+        Collections.sort(sorted);
+        final int first = Math.min(1, projects.size());
+        final List<AndroidProject> merged = new ArrayList<AndroidProject>(projects.size()
+                + sorted.size());
+        merged.addAll(projects.subList(0, first));
+        int i = first;
+        int j = 0;
+        // The first row that changes, the rows above it don't need to be
+        // cleared
+        int changed = -1;
+        while (i < projects.size() || j < sorted.size()) {
+            if (j < sorted.size()
+                    && (i == projects.size() || sorted.get(j).compareTo(projects.get(i)) < 0)) {
+                if (changed < 0) {
+                    changed = merged.size();
+                }
+                merged.add(sorted.get(j++));
+            } else {
+                merged.add(projects.get(i++));
+            }
+        }
+        projects.clear();
+        projects.addAll(merged);
+        for (final AndroidProject project : sorted) {
+            setChecked(project, project.preSelected());
+        }
+
+        table.setItemCount(projects.size());
+        table.clear(changed, projects.size() - 1);
+    }
+
+    public void removeAllProjects() {
+        projects.clear();
+        checked.clear();
+        table.removeAll();
+    }
+
+    /**
+     * Returns the projects in table order
+     */
+    public List<AndroidProject> getProjects() {
+        return Collections.unmodifiableList(projects);
+    }
+
+    public List<AndroidProject> getCheckedProjects() {
+        final List<AndroidProject> checkedProjects = new ArrayList<AndroidProject>(
+                checked.size());
+        for (final AndroidProject project : projects) {
+            if (checked.contains(project)) {
+                checkedProjects.add(project);
+            }
+        }
+        return checkedProjects;
     }
 
-    public TableItem createTableItem() {
-        return new TableItem(table, SWT.NONE);
+    public int getCheckedCount() {
+        return checked.size();
     }
 
     public void addListener(CompositeListener listener) {
@@ -18,34 +18,65 @@ package it.wallgren.android.platform.gui;
 
 import it.wallgren.android.platform.ProjectCreationState;
 import it.wallgren.android.platform.project.AndroidMkAnalyzer;
+import it.wallgren.android.platform.project.AndroidMkCache;
+import it.wallgren.android.platform.project.AndroidModule;
 import it.wallgren.android.platform.project.AndroidPlatformProject;
 import it.wallgren.android.platform.project.AndroidProject;
+import it.wallgren.android.platform.project.MakefileIndex;
 import it.wallgren.android.platform.project.PackagesProject;
 
 import java.io.File;
 import java.io.IOException;
-import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.eclipse.core.runtime.IPath;
 import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
 import org.eclipse.core.runtime.Path;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
 import org.eclipse.jface.dialogs.Dialog;
-import org.eclipse.jface.operation.IRunnableWithProgress;
 import org.eclipse.jface.wizard.WizardPage;
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.widgets.Composite;
 import org.eclipse.swt.widgets.Display;
-import org.eclipse.swt.widgets.TableItem;
 
 public class ProjectSelectionPage extends WizardPage {
+    /**
+     * Analyzed projects are added to the table at most this often (ms). Keeps
+     * the UI thread responsive when there are thousands of packages.
+     */
+    private static final int BATCH_DELAY = 50;
+
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
 
-    private final List<AndroidProject> projects = new LinkedList<AndroidProject>();
     private final ProjectCreationState state;
     private ProjectSelectionComposite composite;
+    private IPath listedRepoPath;
+    private AnalyzeJob analyzeJob;
+
+    private final Runnable flush = new Runnable() {
+        @Override
+        public void run() {
+            flushPending();
+        }
+    };
 
     public ProjectSelectionPage(ProjectCreationState state, String pageName) {
         super(pageName);
@@ -73,15 +104,17 @@ public class ProjectSelectionPage extends WizardPage {
         Dialog.applyDialogFont(composite);
     }
 
-    private boolean validatePage() {
-        final TableItem[] items = composite.getItems();
-        for (final TableItem tableItem : items) {
-            // We need at least one selected project
-            if (tableItem.getChecked()) {
-                return true;
-            }
+    @Override
+    public void dispose() {
+        if (analyzeJob != null) {
+            analyzeJob.cancel();
         }
-        return false;
+        super.dispose();
+    }
+
+    private boolean validatePage() {
+        // We need at least one selected project
+        return composite.getCheckedCount() > 0;
     }
 
     @Override
@@ -92,106 +125,213 @@ public class ProjectSelectionPage extends WizardPage {
         }
     }
 
+    /**
+     * Fill the table with the projects of the selected repo. The packages are
+     * analyzed in a background job and added to the table as they are done, so
+     * the user can start selecting projects right away.
+     */
     private void updateProjectList() {
-        try {
-            getContainer().run(true, false, new IRunnableWithProgress() {
-                @Override
-                public void run(IProgressMonitor monitor) throws InvocationTargetException,
-                InterruptedException {
-                    synchronized (projects) {
-                        // monitor.beginTask("Creating projects",
-                        // packagesProjects.size() + 1);
-                        monitor.beginTask("Creating projects", 1);
-
-                        monitor.worked(1);
-
-                        // Do we want to support packages/apps projects? Some
-                        // problems still exists
-                        // for some of the genrated projects. Probably not worth
-                        // it
-                        final List<IPath> packagesProjects = findPackagesProjects();
-                        for (final IPath path : packagesProjects) {
-                            monitor.subTask(path.lastSegment());
-                            final AndroidMkAnalyzer analyzer = new AndroidMkAnalyzer(state.getRepoPath()
-                                    .toFile(), new File(path.toFile(), "Android.mk"));
-                            try {
-                                analyzer.parse();
-                            } catch (final IOException e) {
-                                e.printStackTrace();
-                                continue; // Skip the failing package
-                            }
-                            final String packageName = analyzer.getPackageName();
-                            final File outDirectory = analyzer.getOutDirectory();
-                            if (outDirectory == null || packageName == null) {
-                                continue; // Skip this package, it does not seem
-                                // complete
-                            }
-                            projects.add(new PackagesProject(path, state.getRepoPath(),
-                                    packageName, outDirectory));
-                            monitor.worked(1);
-                        }
-                        Collections.sort(projects);
-                        // We want the platform project on top
-                        projects.add(0, new AndroidPlatformProject(state.getRepoPath()));
-                    }
-                    monitor.done();
+        final IPath repoPath = state.getRepoPath();
+        if (repoPath.equals(listedRepoPath)) {
+            // Already listed (or being listed)
+            return;
+        }
+        listedRepoPath = repoPath;
+        if (analyzeJob != null) {
+            analyzeJob.cancel();
+        }
+        composite.removeAllProjects();
 
-                    // Redraw must be called on the UI thread
-                    Display.getDefault().asyncExec(new Runnable() {
+        // We want the platform project on top
+        composite.addProject(0, new AndroidPlatformProject(repoPath));
+        setPageComplete(validatePage());
+
+        analyzeJob = new AnalyzeJob(repoPath);
+        analyzeJob.schedule();
+    }
+
+    /**
+     * Parses the Android.mk of every package on a thread pool. Each project is
+     * handed to the table as soon as its makefile is done.
+     */
+    private class AnalyzeJob extends Job {
+        private final IPath repoPath;
+        private final AndroidMkCache cache;
+
+        /**
+         * Projects analyzed but not yet added to the table
+         */
+        private final Queue<AndroidProject> pending = new ConcurrentLinkedQueue<AndroidProject>();
+        private final AtomicInteger analyzed = new AtomicInteger();
+        private volatile int toAnalyze;
+        private volatile boolean done;
+
+        public AnalyzeJob(IPath repoPath) {
+            super("Analyzing Android.mk files");
+            this.repoPath = repoPath;
+            this.cache = AndroidMkCache.get(repoPath.toFile());
+        }
+
+        @Override
+        protected IStatus run(IProgressMonitor monitor) {
+            monitor.subTask("Searching for Android.mk files");
+            final List<IPath> packagesProjects = findPackagesProjects(repoPath);
+            toAnalyze = packagesProjects.size();
+            monitor.beginTask(getName(), packagesProjects.size());
+            try {
+                analyzePackagesProjects(packagesProjects, monitor);
+            } catch (final InterruptedException e) {
+                return Status.CANCEL_STATUS;
+            } finally {
+                cache.save();
+                monitor.done();
+                done = true;
+                scheduleFlush();
+            }
+            return Status.OK_STATUS;
+        }
+
+        /**
+         * @throws InterruptedException if canceled
+         */
+        private void analyzePackagesProjects(List<IPath> packagesProjects,
+                IProgressMonitor monitor) throws InterruptedException {
+            final int threads = Runtime.getRuntime().availableProcessors();
+            final ExecutorService executor = Executors.newFixedThreadPool(threads);
+            final CompletionService<List<PackagesProject>> completionService =
+                    new ExecutorCompletionService<List<PackagesProject>>(executor);
+            try {
+                for (final IPath path : packagesProjects) {
+                    completionService.submit(new Callable<List<PackagesProject>>() {
                         @Override
-                        public void run() {
-                            synchronized (projects) {
-                                for (final AndroidProject project : projects) {
-                                    final TableItem item = composite.createTableItem();
-                                    item.setText(project.getName());
-                                    item.setChecked(project.preSelected());
-                                }
-                                setPageComplete(validatePage());
-                                getShell().pack();
-                            }
+                        public List<PackagesProject> call() throws Exception {
+                            return analyzeMakeFile(cache, repoPath, path);
                         }
                     });
                 }
-            });
-        } catch (final Exception e1) {
-            // TODO: Better error handling if project creation fail
-            e1.printStackTrace();
-        }
-    }
 
-    private List<IPath> findPackagesProjects() {
-        final LinkedList<IPath> folders = new LinkedList<IPath>();
-        final File packages = new File(state.getRepoPath().toFile(), "packages");
-        for (final File folder : packages.listFiles()) {
-            // TODO: experimental is usually not built when building the rest of
-            // the platorm. How
-            // should we treat them? Don't include them for now
-
-            // folder = apps experimental inputmethods providers wallpapers...
-            if (folder.isDirectory() && !"experimental".equals(folder.getName())) {
-                for (final File projectFolder : folder.listFiles()) {
-                    // projectFolder = .../packages/apps/* ...
-                    if (projectFolder.isDirectory()
-                            && new File(projectFolder, "Android.mk").exists()) {
-                        folders.add(new Path(projectFolder.getAbsolutePath()));
+                int done = 0;
+                while (done < packagesProjects.size()) {
+                    if (monitor.isCanceled()) {
+                        throw new InterruptedException();
+                    }
+                    final Future<List<PackagesProject>> result = completionService.poll(100,
+                            TimeUnit.MILLISECONDS);
+                    if (result == null) {
+                        continue;
                     }
+                    done++;
+                    monitor.worked(1);
+                    analyzed.incrementAndGet();
+                    try {
+                        for (final PackagesProject project : result.get()) {
+                            monitor.subTask(project.getName());
+                            pending.add(project);
+                        }
+                    } catch (final ExecutionException e) {
+                        // Skip the failing package
+                        e.getCause().printStackTrace();
+                    }
+                    scheduleFlush();
                 }
+            } finally {
+                executor.shutdownNow();
             }
         }
-        return folders;
     }
 
-    public List<AndroidProject> getSelectedProjects() {
-        synchronized (projects) {
-            final ArrayList<AndroidProject> selectedProjects = new ArrayList<AndroidProject>(
-                    projects.size());
-            final TableItem[] items = composite.getItems();
-            for (int i = 0; i < items.length; i++) {
-                if (items[i].getChecked()) {
-                    selectedProjects.add(projects.get(i));
-                }
+    /**
+     * Returns a project for the folder of the makefile, and one for every
+     * sub folder with modules defined by the makefiles it includes
+     *
+     * @return the projects, empty if the package could not be analyzed
+     */
+    private List<PackagesProject> analyzeMakeFile(AndroidMkCache cache, IPath repoPath,
+            IPath path) {
+        final List<PackagesProject> projects = new ArrayList<PackagesProject>();
+        final List<AndroidModule> modules;
+        try {
+            modules = cache.getModules(new File(path.toFile(), "Android.mk"));
+        } catch (final IOException e) {
+            e.printStackTrace();
+            return projects; // Skip the failing package
+        }
+        final Set<File> directories = new LinkedHashSet<File>();
+        for (final AndroidModule module : modules) {
+            directories.add(module.getDirectory());
+        }
+        for (final File directory : directories) {
+            final AndroidModule module = AndroidMkAnalyzer.getMainModule(modules, directory);
+            if (module == null) {
+                continue; // Skip this folder, it does not seem complete
+            }
+            projects.add(new PackagesProject(new Path(directory.getAbsolutePath()), repoPath,
+                    module));
+        }
+        return projects;
+    }
+
+    /**
+     * Make sure the pending projects are added to the table within
+     * BATCH_DELAY ms. At most one flush is scheduled at a time, no matter how
+     * many projects are analyzed meanwhile.
+     */
+    private void scheduleFlush() {
+        if (!flushScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        final Display display = Display.getDefault();
+        display.asyncExec(new Runnable() {
+            @Override
+            public void run() {
+                display.timerExec(BATCH_DELAY, flush);
             }
-            return selectedProjects;
+        });
+    }
+
+    /**
+     * Add all pending projects to the table in sorted order, below the
+     * platform project. Must be called on the UI thread.
+     */
+    private void flushPending() {
+        flushScheduled.set(false);
+        final AnalyzeJob job = analyzeJob;
+        if (job == null || composite == null || composite.isDisposed()) {
+            return;
+        }
+        final List<AndroidProject> projects = new ArrayList<AndroidProject>();
+        AndroidProject project;
+        while ((project = job.pending.poll()) != null) {
+            projects.add(project);
+        }
+        composite.addSortedProjects(projects);
+
+        if (job.done) {
+            setMessage(null);
+            getShell().pack();
+        } else {
+            setMessage("Analyzing packages (" + job.analyzed.get() + " of " + job.toAnalyze
+                    + ")");
+        }
+        setPageComplete(validatePage());
+    }
+
+    /**
+     * Returns the folder of every makefile in the repo, not only the ones
+     * under packages. Folders without java modules are dropped when they are
+     * analyzed, and the folders of included makefiles are added then.
+     */
+    private List<IPath> findPackagesProjects(IPath repoPath) {
+        final MakefileIndex index = MakefileIndex.load(repoPath.toFile());
+        final List<IPath> folders = new LinkedList<IPath>();
+        for (final File makeFile : index.find()) {
+            folders.add(new Path(makeFile.getParentFile().getAbsolutePath()));
         }
+        index.save();
+        return folders;
+    }
+
+    public List<AndroidProject> getSelectedProjects() {
+        return composite.getCheckedProjects();
     }
 }
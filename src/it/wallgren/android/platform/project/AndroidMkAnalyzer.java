@@ -16,24 +16,91 @@
 
 package it.wallgren.android.platform.project;
 
+import it.wallgren.android.platform.DirectoryAnalyzer;
+
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.LineNumberReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
 /**
  * Android.mk parser. This is not a complete parser, it is only intended to find
  * the information we need
+ *
+ * The makefile is evaluated with a small subset of make: variable assignment
+ * and expansion, line continuations, conditionals, define, $(call ...) of
+ * user macros and of the build system macros that matter for java modules,
+ * and includes of other makefiles in the repo. Rules and recipes are ignored.
+ * Each include of a build template, e.g. $(BUILD_PACKAGE), results in an
+ * {@link AndroidModule}.
  */
 public class AndroidMkAnalyzer {
+    private static final String MAKEFILE_NAME = "Android.mk";
+    private static final String LOCAL_PREFIX = "LOCAL_";
+    private static final String LOCAL_PATH = "LOCAL_PATH";
     private static final String PACKAGE_NAME = "LOCAL_PACKAGE_NAME";
-    private static final String BUILD_INCLUDE_APPS = "include $(BUILD_PACKAGE)";
-    private static final String BUILD_INCLUDE_JAVA_LIBRARY = "include $(BUILD_PACKAGE)";
+    private static final String MODULE = "LOCAL_MODULE";
+    private static final String SRC_FILES = "LOCAL_SRC_FILES";
+    private static final String JAVA_LIBRARIES = "LOCAL_JAVA_LIBRARIES";
+    private static final String STATIC_JAVA_LIBRARIES = "LOCAL_STATIC_JAVA_LIBRARIES";
+    private static final String SDK_VERSION = "LOCAL_SDK_VERSION";
+    private static final String NO_STANDARD_LIBRARIES = "LOCAL_NO_STANDARD_LIBRARIES";
+
+    /**
+     * Java files under a folder, the result of all-java-files-under. Kept as a
+     * pattern instead of listing the files.
+     */
+    private static final String JAVA_FILES_PATTERN = "**/*.java";
+
+    private static final String CLEAR_VARS = "build/core/clear_vars.mk";
+    private static final Map<String, AndroidModule.Type> BUILD_TEMPLATES =
+            new HashMap<String, AndroidModule.Type>();
+    private static final Map<String, String> BUILD_VARIABLES = new HashMap<String, String>();
+    static {
+        BUILD_TEMPLATES.put("build/core/package.mk", AndroidModule.Type.PACKAGE);
+        BUILD_TEMPLATES.put("build/core/java_library.mk", AndroidModule.Type.JAVA_LIBRARY);
+        BUILD_TEMPLATES.put("build/core/static_java_library.mk",
+                AndroidModule.Type.STATIC_JAVA_LIBRARY);
+        BUILD_TEMPLATES.put("build/core/host_java_library.mk",
+                AndroidModule.Type.HOST_JAVA_LIBRARY);
+
+        BUILD_VARIABLES.put("BUILD_SYSTEM", "build/core");
+        BUILD_VARIABLES.put("CLEAR_VARS", CLEAR_VARS);
+        BUILD_VARIABLES.put("BUILD_PACKAGE", "build/core/package.mk");
+        BUILD_VARIABLES.put("BUILD_JAVA_LIBRARY", "build/core/java_library.mk");
+        BUILD_VARIABLES.put("BUILD_STATIC_JAVA_LIBRARY", "build/core/static_java_library.mk");
+        BUILD_VARIABLES.put("BUILD_HOST_JAVA_LIBRARY", "build/core/host_java_library.mk");
+    }
+
+    private static final Set<String> FUNCTIONS = new LinkedHashSet<String>(Arrays.asList(
+            "call", "strip", "subst", "patsubst", "addprefix", "addsuffix", "filter",
+            "filter-out", "wildcard", "foreach", "if", "dir", "notdir", "sort", "firstword",
+            "shell", "eval", "info", "warning", "error"));
+
+    /**
+     * Makefiles nested deeper than this are not included, protects against
+     * include loops
+     */
+    private static final int MAX_INCLUDE_DEPTH = 16;
 
     private final File makeFile;
-    private String packageName;
     private final File repoRoot;
-    private File outDir;
+    private final List<AndroidModule> modules = new ArrayList<AndroidModule>();
+
+    private final Map<String, Variable> variables = new HashMap<String, Variable>();
+    private final LinkedList<File> makeFiles = new LinkedList<File>();
+    private final Set<File> readMakeFiles = new LinkedHashSet<File>();
+    private final Set<File> checkedDirectories = new LinkedHashSet<File>();
 
     public AndroidMkAnalyzer(File repoRoot, File makeFile) {
         this.makeFile = makeFile;
@@ -47,32 +114,832 @@ public class AndroidMkAnalyzer {
      */
 
     public void parse() throws IOException {
-        packageName = null;
-        final LineNumberReader reader = new LineNumberReader(new FileReader(makeFile));
-        String line;
-        while ((line = reader.readLine()) != null) {
-            final String[] tokens = line.split("\\s*[:+]=\\s*");
-            if (tokens.length > 1) {
-                if (PACKAGE_NAME.equals(tokens[0])) {
-                    packageName = tokens[1];
+        modules.clear();
+        variables.clear();
+        makeFiles.clear();
+        readMakeFiles.clear();
+        checkedDirectories.clear();
+        for (final Map.Entry<String, String> variable : BUILD_VARIABLES.entrySet()) {
+            variables.put(variable.getKey(), new Variable(variable.getValue(), false));
+        }
+        evaluate(makeFile);
+    }
+
+    /**
+     * Returns all java modules defined by the makefile and the makefiles it
+     * includes, in the order they are defined
+     */
+    public List<AndroidModule> getModules() {
+        return modules;
+    }
+
+    /**
+     * Returns every makefile read while parsing, the analyzed makefile and
+     * all makefiles it includes
+     */
+    public Set<File> getMakeFiles() {
+        return readMakeFiles;
+    }
+
+    /**
+     * Returns every folder whose content the result depends on: the folders
+     * searched for makefiles, and the folders of files that were checked for
+     * existence (wildcard, missing includes). Adding or removing a file in
+     * any of them may change the result.
+     */
+    public Set<File> getDirectories() {
+        return checkedDirectories;
+    }
+
+    /**
+     * Returns the module a project for the makefile's folder should be based
+     * on. That is the first package defined, or the first java library if
+     * there are no packages.
+     *
+     * @return the module or null if there are no java modules
+     */
+    public AndroidModule getMainModule() {
+        return getMainModule(modules);
+    }
+
+    /**
+     * @see #getMainModule()
+     */
+    public static AndroidModule getMainModule(List<AndroidModule> modules) {
+        AndroidModule library = null;
+        for (final AndroidModule module : modules) {
+            if (module.getType() == AndroidModule.Type.PACKAGE) {
+                return module;
+            }
+            if (library == null && module.getType() != AndroidModule.Type.HOST_JAVA_LIBRARY) {
+                library = module;
+            }
+        }
+        return library;
+    }
+
+    /**
+     * Returns the main module of one folder, considering only the modules
+     * whose LOCAL_PATH is that folder. A makefile including the makefiles of
+     * its sub folders defines the modules of several folders.
+     *
+     * @see #getMainModule()
+     */
+    public static AndroidModule getMainModule(List<AndroidModule> modules, File directory) {
+        final List<AndroidModule> local = new ArrayList<AndroidModule>();
+        for (final AndroidModule module : modules) {
+            if (module.getDirectory().equals(directory)) {
+                local.add(module);
+            }
+        }
+        return getMainModule(local);
+    }
+
+    private void evaluate(File file) throws IOException {
+        makeFiles.push(file);
+        readMakeFiles.add(file);
+        final LineNumberReader reader = new LineNumberReader(new FileReader(file));
+        try {
+            final Conditionals conditionals = new Conditionals();
+            StringBuilder define = null;
+            String defineName = null;
+            // Tab indented lines after a rule are its recipe, anywhere else
+            // they are ordinary lines
+            boolean inRule = false;
+            String line;
+            while ((line = readLine(reader)) != null) {
+                final String trimmed = line.trim();
+                if (define != null) {
+                    if (trimmed.equals("endef")) {
+                        if (conditionals.isActive()) {
+                            variables.put(defineName, new Variable(define.toString(), true));
+                        }
+                        define = null;
+                    } else {
+                        define.append(line).append('\n');
+                    }
+                    continue;
+                }
+                if (inRule && line.startsWith("\t")) {
+                    // Recipe
+                    continue;
+                }
+                final String statement = stripComment(trimmed);
+                if (statement.length() == 0 || conditionals.evaluate(statement)) {
+                    continue;
+                }
+                if (statement.startsWith("define ")) {
+                    // Read even if inactive, the body must not be evaluated
+                    defineName = expand(statement.substring("define ".length()).trim());
+                    define = new StringBuilder();
+                    inRule = false;
+                } else if (!conditionals.isActive()) {
+                    continue;
+                } else if (statement.startsWith("include ")
+                        || statement.startsWith("-include ")
+                        || statement.startsWith("sinclude ")) {
+                    include(statement.substring(statement.indexOf(' ') + 1));
+                    inRule = false;
+                } else {
+                    inRule = isRule(statement);
+                    if (!inRule) {
+                        assign(statement);
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+            makeFiles.pop();
+        }
+    }
+
+    /**
+     * Read a line, joining lines ending with a backslash
+     */
+    private String readLine(LineNumberReader reader) throws IOException {
+        String line = reader.readLine();
+        if (line == null) {
+            return null;
+        }
+        final StringBuilder sb = new StringBuilder();
+        while (line != null && line.endsWith("\\")) {
+            sb.append(line, 0, line.length() - 1).append(' ');
+            line = reader.readLine();
+        }
+        if (line != null) {
+            sb.append(line);
+        }
+        return sb.toString();
+    }
+
+    private String stripComment(String line) {
+        for (int i = 0; i < line.length(); i++) {
+            if (line.charAt(i) == '#' && (i == 0 || line.charAt(i - 1) != '\\')) {
+                return line.substring(0, i).trim();
+            }
+        }
+        return line;
+    }
+
+    /**
+     * Returns true if the statement is a rule, i.e. there is a ':' that is
+     * not part of an assignment operator before any '='
+     */
+    private static boolean isRule(String statement) {
+        int depth = 0;
+        for (int i = 0; i < statement.length(); i++) {
+            final char c = statement.charAt(i);
+            if (c == '(' || c == '{') {
+                depth++;
+            } else if (c == ')' || c == '}') {
+                depth--;
+            } else if (c == '=' && depth == 0) {
+                return false;
+            } else if (c == ':' && depth == 0) {
+                // :=, ::= and :::= are assignments, :: is a rule
+                int end = i;
+                while (end < statement.length() && statement.charAt(end) == ':') {
+                    end++;
                 }
+                return end == statement.length() || statement.charAt(end) != '=';
+            }
+        }
+        return false;
+    }
+
+    private void assign(String statement) {
+        int i = 0;
+        int depth = 0;
+        for (; i < statement.length(); i++) {
+            final char c = statement.charAt(i);
+            if (c == '(' || c == '{') {
+                depth++;
+            } else if (c == ')' || c == '}') {
+                depth--;
+            } else if (c == '=' && depth == 0) {
+                break;
+            }
+        }
+        if (i == statement.length()) {
+            // Not an assignment, e.g $(call ...) or a rule without recipe
+            return;
+        }
+        char operator = i > 0 ? statement.charAt(i - 1) : '=';
+        int nameEnd = i - 1;
+        if (operator != ':' && operator != '+' && operator != '?') {
+            operator = '=';
+            nameEnd = i;
+        }
+        String name = statement.substring(0, nameEnd).trim();
+        if (name.startsWith("override ") || name.startsWith("export ")) {
+            name = name.substring(name.indexOf(' ') + 1).trim();
+        }
+        if (name.contains(":") || name.contains(" ") || name.contains("\t")) {
+            // Target specific variable, not interesting
+            return;
+        }
+        name = expand(name);
+        final String value = statement.substring(i + 1).trim();
+
+        final Variable old = variables.get(name);
+        switch (operator) {
+            case ':':
+                variables.put(name, new Variable(expand(value), false));
+                break;
+            case '?':
+                if (old == null) {
+                    variables.put(name, new Variable(value, true));
+                }
+                break;
+            case '+':
+                if (old == null) {
+                    variables.put(name, new Variable(value, true));
+                } else if (old.recursive) {
+                    variables.put(name, new Variable(old.value + " " + value, true));
+                } else {
+                    variables.put(name, new Variable(old.value + " " + expand(value), false));
+                }
+                break;
+            default:
+                variables.put(name, new Variable(value, true));
+                break;
+        }
+    }
+
+    private void include(String files) throws IOException {
+        for (final String file : split(expand(files))) {
+            if (CLEAR_VARS.equals(file)) {
+                clearVars();
+                continue;
+            }
+            final AndroidModule.Type type = BUILD_TEMPLATES.get(file);
+            if (type != null) {
+                addModule(type);
+                continue;
+            }
+            if (file.startsWith("build/") || makeFiles.size() >= MAX_INCLUDE_DEPTH) {
+                // Some other part of the build system
+                continue;
+            }
+            final File included = resolve(file);
+            if (included.isFile()) {
+                evaluate(included);
+            } else {
+                checkedDirectories.add(included.getParentFile());
+            }
+        }
+    }
+
+    private void clearVars() {
+        final Iterator<String> names = variables.keySet().iterator();
+        while (names.hasNext()) {
+            final String name = names.next();
+            if (name.startsWith(LOCAL_PREFIX) && !name.equals(LOCAL_PATH)) {
+                names.remove();
+            }
+        }
+    }
+
+    private void addModule(AndroidModule.Type type) {
+        final String name;
+        if (type == AndroidModule.Type.PACKAGE) {
+            name = getVariable(PACKAGE_NAME);
+        } else {
+            name = getVariable(MODULE);
+        }
+        if (name.length() == 0) {
+            return;
+        }
+        final File directory = resolve(getVariable(LOCAL_PATH));
+        final Set<File> sourceDirs = new LinkedHashSet<File>();
+        for (final String src : split(getVariable(SRC_FILES))) {
+            if (src.equals(JAVA_FILES_PATTERN)) {
+                sourceDirs.add(directory);
+            } else if (src.endsWith("/" + JAVA_FILES_PATTERN)) {
+                sourceDirs.add(normalize(new File(directory, src.substring(0, src.length()
+                        - JAVA_FILES_PATTERN.length() - 1))));
+            } else if (src.endsWith(".java")) {
+                sourceDirs.add(getSourceDir(normalize(new File(directory, src))));
+            }
+        }
+        modules.add(new AndroidModule(repoRoot, name, type, makeFiles.peek(), directory,
+                new ArrayList<File>(sourceDirs), split(getVariable(JAVA_LIBRARIES)),
+                split(getVariable(STATIC_JAVA_LIBRARIES)), getVariable(SDK_VERSION),
+                !"true".equals(getVariable(NO_STANDARD_LIBRARIES))));
+    }
+
+    /**
+     * Remove . and .. from a path, e.g. from $(call all-java-files-under, .)
+     */
+    private static File normalize(File file) {
+        return file.toPath().normalize().toFile();
+    }
+
+    /**
+     * Returns the source folder of a java file listed in LOCAL_SRC_FILES,
+     * taken from its package declaration. If the file can't be read, or the
+     * declaration does not match its folders, the folder of the file is used.
+     */
+    private static File getSourceDir(File javaFile) {
+        try {
+            final File dir = DirectoryAnalyzer.getSourceDirForJavaFile(javaFile);
+            if (dir != null) {
+                return dir;
+            }
+        } catch (final IOException e) {
+            // Generated or missing, fall back to its folder
+        }
+        return javaFile.getParentFile();
+    }
+
+    private String getVariable(String name) {
+        final Variable variable = variables.get(name);
+        if (variable == null) {
+            return "";
+        }
+        return variable.recursive ? expand(variable.value).trim() : variable.value.trim();
+    }
+
+    /**
+     * Resolve a path the way make does, relative to the repo root where make
+     * is run
+     */
+    private File resolve(String path) {
+        final File file = new File(path);
+        if (file.isAbsolute()) {
+            return file;
+        }
+        return new File(repoRoot, path);
+    }
+
+    /**
+     * Returns the path of a file relative to the repo root, like the build
+     * system would see it
+     */
+    private String relativize(File file) {
+        final String root = repoRoot.getPath();
+        final String path = file.getPath();
+        if (path.equals(root)) {
+            return ".";
+        }
+        if (path.startsWith(root + File.separator)) {
+            return path.substring(root.length() + 1);
+        }
+        return path;
+    }
+
+    /**
+     * Expand all variable references and function calls in a string
+     */
+    private String expand(String value) {
+        if (value.indexOf('$') < 0) {
+            return value;
+        }
+        final StringBuilder sb = new StringBuilder(value.length());
+        int i = 0;
+        while (i < value.length()) {
+            final char c = value.charAt(i);
+            if (c != '$' || i + 1 == value.length()) {
+                sb.append(c);
+                i++;
+                continue;
+            }
+            final char next = value.charAt(i + 1);
+            if (next == '$') {
+                sb.append('$');
+                i += 2;
+            } else if (next == '(' || next == '{') {
+                final int end = findClose(value, i + 1);
+                sb.append(expandReference(value.substring(i + 2, end)));
+                i = end + 1;
             } else {
-                if (BUILD_INCLUDE_APPS.equals(tokens[0])) {
-                    outDir = new File(repoRoot, "/out/target/common/obj/APPS/" + getPackageName()
-                            + "_intermediates");
-                } else if (BUILD_INCLUDE_JAVA_LIBRARY.equals(tokens[0])) {
-                    outDir = new File(repoRoot, "/out/target/common/obj/JAVA_LIBRARIES"
-                            + getPackageName() + "_intermediates");
+                // Single character variable, e.g $1
+                sb.append(getVariable(String.valueOf(next)));
+                i += 2;
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the index of the parenthesis closing the one at start, or the
+     *         end of the string if it is not closed
+     */
+    private int findClose(String value, int start) {
+        final char open = value.charAt(start);
+        final char close = open == '(' ? ')' : '}';
+        int depth = 0;
+        for (int i = start; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == open) {
+                depth++;
+            } else if (c == close) {
+                depth--;
+                if (depth == 0) {
+                    return i;
                 }
             }
         }
+        return value.length() - 1;
+    }
+
+    private String expandReference(String reference) {
+        final int space = indexOfWhitespace(reference);
+        if (space > 0 && FUNCTIONS.contains(reference.substring(0, space))) {
+            return function(reference.substring(0, space), splitArguments(reference
+                    .substring(space + 1)));
+        }
+        return getVariable(expand(reference));
+    }
+
+    private String function(String function, List<String> args) {
+        if (function.equals("call")) {
+            return call(expand(args.get(0)).trim(), args.subList(1, args.size()));
+        }
+        if (function.equals("foreach") && args.size() == 3) {
+            final String name = expand(args.get(0)).trim();
+            final Variable old = variables.get(name);
+            final StringBuilder sb = new StringBuilder();
+            for (final String word : split(expand(args.get(1)))) {
+                variables.put(name, new Variable(word, false));
+                sb.append(expand(args.get(2))).append(' ');
+            }
+            restore(name, old);
+            return sb.toString().trim();
+        }
+        if (function.equals("if")) {
+            final boolean condition = expand(args.get(0)).trim().length() > 0;
+            if (condition) {
+                return args.size() > 1 ? expand(args.get(1)) : "";
+            }
+            return args.size() > 2 ? expand(args.get(2)) : "";
+        }
+
+        final List<String> values = new ArrayList<String>(args.size());
+        for (final String arg : args) {
+            values.add(expand(arg));
+        }
+        if (function.equals("strip")) {
+            return join(split(values.get(0)));
+        }
+        if (function.equals("subst") && values.size() == 3) {
+            return values.get(2).replace(values.get(0), values.get(1));
+        }
+        if (function.equals("patsubst") && values.size() == 3) {
+            final List<String> result = new ArrayList<String>();
+            for (final String word : split(values.get(2))) {
+                result.add(patsubst(values.get(0).trim(), values.get(1).trim(), word));
+            }
+            return join(result);
+        }
+        if ((function.equals("addprefix") || function.equals("addsuffix")) && values.size() == 2) {
+            final List<String> result = new ArrayList<String>();
+            for (final String word : split(values.get(1))) {
+                result.add(function.equals("addprefix") ? values.get(0).trim() + word : word
+                        + values.get(0).trim());
+            }
+            return join(result);
+        }
+        if ((function.equals("filter") || function.equals("filter-out")) && values.size() == 2) {
+            final List<String> patterns = split(values.get(0));
+            final List<String> result = new ArrayList<String>();
+            for (final String word : split(values.get(1))) {
+                boolean matches = false;
+                for (final String pattern : patterns) {
+                    matches |= matches(pattern, word);
+                }
+                if (matches == function.equals("filter")) {
+                    result.add(word);
+                }
+            }
+            return join(result);
+        }
+        if (function.equals("wildcard")) {
+            final List<String> result = new ArrayList<String>();
+            for (final String word : split(values.get(0))) {
+                // Only plain paths, globbing is not supported
+                if (word.contains("*")) {
+                    continue;
+                }
+                final File file = resolve(word);
+                checkedDirectories.add(file.getParentFile());
+                if (file.exists()) {
+                    result.add(word);
+                }
+            }
+            return join(result);
+        }
+        if (function.equals("dir") || function.equals("notdir")) {
+            final List<String> result = new ArrayList<String>();
+            for (final String word : split(values.get(0))) {
+                final int slash = word.lastIndexOf('/');
+                if (function.equals("dir")) {
+                    result.add(slash < 0 ? "./" : word.substring(0, slash + 1));
+                } else {
+                    result.add(word.substring(slash + 1));
+                }
+            }
+            return join(result);
+        }
+        if (function.equals("sort")) {
+            final List<String> result = new ArrayList<String>(new TreeSet<String>(
+                    split(values.get(0))));
+            return join(result);
+        }
+        if (function.equals("firstword")) {
+            final List<String> words = split(values.get(0));
+            return words.isEmpty() ? "" : words.get(0);
+        }
+        // shell, eval, info, warning and error have no value for us
+        return "";
+    }
+
+    /**
+     * Call a build system macro or a user defined macro
+     */
+    private String call(String name, List<String> args) {
+        final List<String> values = new ArrayList<String>(args.size());
+        for (final String arg : args) {
+            values.add(expand(arg).trim());
+        }
+        final String localPath = getVariable(LOCAL_PATH);
+        if (name.equals("my-dir")) {
+            return relativize(makeFiles.peek().getParentFile());
+        }
+        if (name.equals("all-java-files-under")) {
+            final List<String> result = new ArrayList<String>();
+            for (final String dir : split(values.isEmpty() ? "" : values.get(0))) {
+                result.add(dir + "/" + JAVA_FILES_PATTERN);
+            }
+            return join(result);
+        }
+        if (name.equals("all-subdir-java-files")) {
+            return JAVA_FILES_PATTERN;
+        }
+        if (name.equals("all-makefiles-under")) {
+            return join(findMakeFiles(resolve(values.isEmpty() ? localPath : values.get(0))));
+        }
+        if (name.equals("all-subdir-makefiles")) {
+            return join(findMakeFiles(resolve(localPath)));
+        }
+        if (name.startsWith("all-")) {
+            // Other kinds of files (aidl, renderscript, ...) are not java
+            // source folders
+            return "";
+        }
+
+        final Variable macro = variables.get(name);
+        if (macro == null) {
+            return "";
+        }
+        final Map<String, Variable> old = new HashMap<String, Variable>();
+        for (int i = 0; i < values.size(); i++) {
+            final String arg = String.valueOf(i + 1);
+            old.put(arg, variables.get(arg));
+            variables.put(arg, new Variable(values.get(i), false));
+        }
+        final String result = expand(macro.value);
+        for (final Map.Entry<String, Variable> entry : old.entrySet()) {
+            restore(entry.getKey(), entry.getValue());
+        }
+        return result;
+    }
+
+    private void restore(String name, Variable old) {
+        if (old == null) {
+            variables.remove(name);
+        } else {
+            variables.put(name, old);
+        }
+    }
+
+    /**
+     * Find the makefiles below a folder the way the build system does: the
+     * first Android.mk found in each sub folder, not looking any deeper once
+     * one is found
+     */
+    private List<String> findMakeFiles(File dir) {
+        final List<String> result = new ArrayList<String>();
+        checkedDirectories.add(dir);
+        final File[] children = dir.listFiles();
+        if (children == null) {
+            return result;
+        }
+        Arrays.sort(children);
+        for (final File child : children) {
+            if (!child.isDirectory() || child.getName().startsWith(".")) {
+                continue;
+            }
+            final File childMakeFile = new File(child, MAKEFILE_NAME);
+            if (childMakeFile.isFile()) {
+                // Deleting the makefile changes the folder
+                checkedDirectories.add(child);
+                result.add(relativize(childMakeFile));
+            } else {
+                result.addAll(findMakeFiles(child));
+            }
+        }
+        return result;
+    }
+
+    private static boolean matches(String pattern, String word) {
+        final int percent = pattern.indexOf('%');
+        if (percent < 0) {
+            return word.equals(pattern);
+        }
+        final String prefix = pattern.substring(0, percent);
+        final String suffix = pattern.substring(percent + 1);
+        return word.length() >= prefix.length() + suffix.length() && word.startsWith(prefix)
+                && word.endsWith(suffix);
     }
 
-    public String getPackageName() {
-        return packageName;
+    private static String patsubst(String pattern, String replacement, String word) {
+        if (!matches(pattern, word)) {
+            return word;
+        }
+        final int percent = pattern.indexOf('%');
+        if (percent < 0) {
+            return replacement;
+        }
+        final String stem = word.substring(percent, word.length() - pattern.length() + percent
+                + 1);
+        return replacement.replace("%", stem);
     }
 
-    public File getOutDirectory() {
-        return outDir;
+    private static int indexOfWhitespace(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (Character.isWhitespace(value.charAt(i))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Split function arguments on commas that are not inside parenthesis
+     */
+    private static List<String> splitArguments(String value) {
+        final List<String> args = new ArrayList<String>();
+        int depth = 0;
+        int start = 0;
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '(' || c == '{') {
+                depth++;
+            } else if (c == ')' || c == '}') {
+                depth--;
+            } else if (c == ',' && depth == 0) {
+                args.add(value.substring(start, i));
+                start = i + 1;
+            }
+        }
+        args.add(value.substring(start));
+        return args;
+    }
+
+    private static List<String> split(String value) {
+        final List<String> words = new ArrayList<String>();
+        for (final String word : value.trim().split("\\s+")) {
+            if (word.length() > 0) {
+                words.add(word);
+            }
+        }
+        return words;
+    }
+
+    private static String join(List<String> words) {
+        final StringBuilder sb = new StringBuilder();
+        for (final String word : words) {
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            sb.append(word);
+        }
+        return sb.toString();
+    }
+
+    private static class Variable {
+        final String value;
+        /**
+         * Recursively expanded variables (=) are expanded when used, simply
+         * expanded variables (:=) when assigned
+         */
+        final boolean recursive;
+
+        Variable(String value, boolean recursive) {
+            this.value = value;
+            this.recursive = recursive;
+        }
+    }
+
+    /**
+     * Keeps track of ifeq/ifneq/ifdef/ifndef/else/endif
+     */
+    private class Conditionals {
+        /**
+         * One entry per open conditional: is the current branch active, and
+         * has any branch been taken
+         */
+        private final LinkedList<boolean[]> stack = new LinkedList<boolean[]>();
+
+        public boolean isActive() {
+            for (final boolean[] conditional : stack) {
+                if (!conditional[0]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return true if the statement was a conditional directive
+         */
+        public boolean evaluate(String statement) {
+            final String keyword = firstWord(statement);
+            if (keyword.equals("endif")) {
+                if (!stack.isEmpty()) {
+                    stack.pop();
+                }
+                return true;
+            }
+            if (keyword.equals("else")) {
+                if (stack.isEmpty()) {
+                    return true;
+                }
+                final boolean[] conditional = stack.peek();
+                final String rest = statement.substring(keyword.length()).trim();
+                if (conditional[1]) {
+                    conditional[0] = false;
+                } else if (rest.length() == 0) {
+                    conditional[0] = true;
+                    conditional[1] = true;
+                } else {
+                    // else ifeq ...
+                    stack.pop();
+                    final boolean parentActive = isActive();
+                    final boolean condition = parentActive && condition(rest);
+                    stack.push(new boolean[] {
+                            condition, condition
+                    });
+                }
+                return true;
+            }
+            if (keyword.equals("ifeq") || keyword.equals("ifneq") || keyword.equals("ifdef")
+                    || keyword.equals("ifndef")) {
+                // Don't evaluate anything inside inactive blocks
+                final boolean condition = isActive() && condition(statement);
+                stack.push(new boolean[] {
+                        condition, condition
+                });
+                return true;
+            }
+            return false;
+        }
+
+        private boolean condition(String statement) {
+            final String keyword = firstWord(statement);
+            final String rest = statement.substring(keyword.length()).trim();
+            if (keyword.equals("ifdef") || keyword.equals("ifndef")) {
+                final boolean defined = getVariable(expand(rest).trim()).length() > 0;
+                return defined == keyword.equals("ifdef");
+            }
+            final String[] operands = operands(rest);
+            final boolean equal = expand(operands[0]).trim().equals(expand(operands[1]).trim());
+            return equal == keyword.equals("ifeq");
+        }
+
+        /**
+         * Split (a,b), "a" "b" or 'a' 'b'
+         */
+        private String[] operands(String value) {
+            if (value.startsWith("(") && value.endsWith(")")) {
+                final List<String> args = splitArguments(value.substring(1, value.length() - 1));
+                if (args.size() == 2) {
+                    return new String[] {
+                            args.get(0), args.get(1)
+                    };
+                }
+            } else if (value.length() > 1) {
+                final char quote = value.charAt(0);
+                final int end = value.indexOf(quote, 1);
+                if (end > 0) {
+                    final String first = value.substring(1, end);
+                    final String second = value.substring(end + 1).trim();
+                    if (second.length() > 1) {
+                        return new String[] {
+                                first, second.substring(1, second.length() - 1)
+                        };
+                    }
+                }
+            }
+            return new String[] {
+                    "", ""
+            };
+        }
+
+        private String firstWord(String statement) {
+            final int space = indexOfWhitespace(statement);
+            return space < 0 ? statement : statement.substring(0, space);
+        }
     }
 }
@@ -0,0 +1,294 @@
+/**
+ * Copyright 2012 Martin Wallgren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.wallgren.android.platform.project;
+
+import it.wallgren.android.platform.StateFile;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persistent cache of analyzed makefiles.
+ *
+ * For every analyzed Android.mk the cache stores the modules it defines, the
+ * size and modification time of every makefile read while evaluating it,
+ * including the included ones, and the modification time of every folder
+ * whose content was listed or checked. As long as none of them has changed
+ * the modules are taken from the cache instead of evaluating the makefile
+ * again.
+ *
+ * The cache is stored in the plugin state location, one file per repo, and
+ * shared by everything that analyzes the makefiles of the repo. It is safe to
+ * use from several threads.
+ */
+public class AndroidMkCache {
+    private static final int VERSION = 3;
+
+    /**
+     * Size of the fingerprint of a folder, only its modification time is
+     * compared
+     */
+    private static final long DIRECTORY = -1;
+
+    /**
+     * Files modified this close to the time they were analyzed may be
+     * modified again without the modification time changing (file systems
+     * with one second resolution). Those are not cached.
+     */
+    private static final long MTIME_RESOLUTION = 2000;
+
+    private static final Map<File, SoftReference<AndroidMkCache>> CACHES =
+            new HashMap<File, SoftReference<AndroidMkCache>>();
+
+    private final File repoRoot;
+    private final StateFile cacheFile;
+    private final Map<String, Entry> entries;
+
+    private AndroidMkCache(File repoRoot, StateFile cacheFile, Map<String, Entry> entries) {
+        this.repoRoot = repoRoot;
+        this.cacheFile = cacheFile;
+        this.entries = entries;
+    }
+
+    /**
+     * Returns the cache of a repo. The stored cache is loaded the first time,
+     * after that the same cache is returned until the garbage collector needs
+     * the memory, so the project wizard and the module graph add to the same
+     * cache and neither save drops the entries of the other.
+     */
+    public static AndroidMkCache get(File repoRoot) {
+        final File key = repoRoot.getAbsoluteFile().toPath().normalize().toFile();
+        synchronized (CACHES) {
+            final SoftReference<AndroidMkCache> reference = CACHES.get(key);
+            AndroidMkCache cache = reference != null ? reference.get() : null;
+            if (cache == null) {
+                cache = load(key);
+                CACHES.put(key, new SoftReference<AndroidMkCache>(cache));
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * Load the cache for a repo. If there is no stored cache (or it can't be
+     * read) an empty cache is returned.
+     */
+    private static AndroidMkCache load(final File repoRoot) {
+        final StateFile cacheFile = StateFile.get("makefiles", repoRoot.getAbsolutePath(),
+                ".idx", VERSION, false);
+        final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+        if (cacheFile != null) {
+            // Without a cache the makefiles will be analyzed again
+            cacheFile.read(new StateFile.Reader<Void>() {
+                @Override
+                public Void read(DataInputStream in) throws IOException {
+                    final Map<String, Entry> read = new HashMap<String, Entry>();
+                    final int size = in.readInt();
+                    for (int i = 0; i < size; i++) {
+                        final String makeFile = in.readUTF();
+                        read.put(makeFile, Entry.read(in, repoRoot));
+                    }
+                    entries.putAll(read);
+                    return null;
+                }
+            });
+        }
+        return new AndroidMkCache(repoRoot, cacheFile, entries);
+    }
+
+    /**
+     * Returns the modules defined by a makefile, from the cache if neither it
+     * nor any makefile it includes has changed.
+     *
+     * @throws IOException if the makefile has to be analyzed and can't be read
+     */
+    public List<AndroidModule> getModules(File makeFile) throws IOException {
+        final String key = relativize(makeFile);
+        final Entry entry = entries.get(key);
+        if (entry != null && entry.isValid(repoRoot)) {
+            return new ArrayList<AndroidModule>(entry.modules);
+        }
+
+        final AndroidMkAnalyzer analyzer = new AndroidMkAnalyzer(repoRoot, makeFile);
+        analyzer.parse();
+        final long now = System.currentTimeMillis();
+        final Entry analyzed = new Entry();
+        for (final File file : analyzer.getMakeFiles()) {
+            final long mtime = file.lastModified();
+            if (mtime > now - MTIME_RESOLUTION) {
+                // Still being edited, don't trust the fingerprint
+                entries.remove(key);
+                return analyzer.getModules();
+            }
+            analyzed.files.add(new Fingerprint(relativize(file), file.length(), mtime));
+        }
+        for (final File dir : analyzer.getDirectories()) {
+            final long mtime = dir.lastModified();
+            if (mtime > now - MTIME_RESOLUTION) {
+                entries.remove(key);
+                return analyzer.getModules();
+            }
+            analyzed.files.add(new Fingerprint(relativize(dir), DIRECTORY, mtime));
+        }
+        for (final AndroidModule module : analyzer.getModules()) {
+            analyzed.modules.add(module);
+        }
+        entries.put(key, analyzed);
+        return analyzer.getModules();
+    }
+
+    /**
+     * Write the cache. Entries of makefiles that no longer exist are dropped.
+     */
+    public synchronized void save() {
+        if (cacheFile == null) {
+            return;
+        }
+        final List<Map.Entry<String, Entry>> kept = new ArrayList<Map.Entry<String, Entry>>();
+        for (final Map.Entry<String, Entry> entry : entries.entrySet()) {
+            if (new File(repoRoot, entry.getKey()).isFile()) {
+                kept.add(entry);
+            }
+        }
+        cacheFile.write(new StateFile.Writer() {
+            @Override
+            public void write(DataOutputStream out) throws IOException {
+                out.writeInt(kept.size());
+                for (final Map.Entry<String, Entry> entry : kept) {
+                    out.writeUTF(entry.getKey());
+                    entry.getValue().write(out, AndroidMkCache.this);
+                }
+            }
+        });
+    }
+
+    private String relativize(File file) {
+        return repoRoot.toPath().relativize(file.getAbsoluteFile().toPath()).toString();
+    }
+
+    private static class Fingerprint {
+        final String path;
+        final long size;
+        final long mtime;
+
+        Fingerprint(String path, long size, long mtime) {
+            this.path = path;
+            this.size = size;
+            this.mtime = mtime;
+        }
+    }
+
+    /**
+     * The analysis of one makefile
+     */
+    private static class Entry {
+        final List<Fingerprint> files = new ArrayList<Fingerprint>();
+        final List<AndroidModule> modules = new ArrayList<AndroidModule>();
+
+        boolean isValid(File repoRoot) {
+            for (final Fingerprint fingerprint : files) {
+                final File file = new File(repoRoot, fingerprint.path);
+                if (file.lastModified() != fingerprint.mtime) {
+                    return false;
+                }
+                if (fingerprint.size != DIRECTORY && file.length() != fingerprint.size) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static AndroidModule readModule(DataInputStream in, File repoRoot)
+                throws IOException {
+            final String[] module = new String[9];
+            for (int i = 0; i < module.length; i++) {
+                module[i] = in.readUTF();
+            }
+            final List<File> sourceDirs = new ArrayList<File>();
+            for (final String dir : split(module[4])) {
+                sourceDirs.add(new File(repoRoot, dir));
+            }
+            return new AndroidModule(repoRoot, module[0], AndroidModule.Type.valueOf(module[1]),
+                    new File(repoRoot, module[2]), new File(repoRoot, module[3]), sourceDirs,
+                    split(module[5]), split(module[6]), module[7], Boolean.parseBoolean(module[8]));
+        }
+
+        static Entry read(DataInputStream in, File repoRoot) throws IOException {
+            final Entry entry = new Entry();
+            final int fileCount = in.readInt();
+            for (int i = 0; i < fileCount; i++) {
+                entry.files.add(new Fingerprint(in.readUTF(), in.readLong(), in.readLong()));
+            }
+            final int moduleCount = in.readInt();
+            for (int i = 0; i < moduleCount; i++) {
+                entry.modules.add(readModule(in, repoRoot));
+            }
+            return entry;
+        }
+
+        void write(DataOutputStream out, AndroidMkCache cache) throws IOException {
+            out.writeInt(files.size());
+            for (final Fingerprint fingerprint : files) {
+                out.writeUTF(fingerprint.path);
+                out.writeLong(fingerprint.size);
+                out.writeLong(fingerprint.mtime);
+            }
+            out.writeInt(modules.size());
+            for (final AndroidModule module : modules) {
+                final List<String> sourceDirs = new ArrayList<String>();
+                for (final File dir : module.getSourceDirectories()) {
+                    sourceDirs.add(cache.relativize(dir));
+                }
+                out.writeUTF(module.getName());
+                out.writeUTF(module.getType().name());
+                out.writeUTF(cache.relativize(module.getMakeFile()));
+                out.writeUTF(cache.relativize(module.getDirectory()));
+                out.writeUTF(join(sourceDirs));
+                out.writeUTF(join(module.getJavaLibraries()));
+                out.writeUTF(join(module.getStaticJavaLibraries()));
+                out.writeUTF(module.getSdkVersion());
+                out.writeUTF(String.valueOf(module.hasStandardLibraries()));
+            }
+        }
+
+        private static List<String> split(String value) {
+            final List<String> words = new ArrayList<String>();
+            for (final String word : value.split("\n")) {
+                if (word.length() > 0) {
+                    words.add(word);
+                }
+            }
+            return words;
+        }
+
+        private static String join(List<String> words) {
+            final StringBuilder sb = new StringBuilder();
+            for (final String word : words) {
+                sb.append(word).append('\n');
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/**
+ * Copyright 2012 Martin Wallgren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.wallgren.android.platform.project;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A java module defined in an Android.mk, i.e. one include of
+ * $(BUILD_PACKAGE), $(BUILD_JAVA_LIBRARY) or similar.
+ */
+public class AndroidModule {
+    public enum Type {
+        PACKAGE("out/target/common/obj/APPS"),
+        JAVA_LIBRARY("out/target/common/obj/JAVA_LIBRARIES"),
+        STATIC_JAVA_LIBRARY("out/target/common/obj/JAVA_LIBRARIES"),
+        HOST_JAVA_LIBRARY("out/host/common/obj/JAVA_LIBRARIES");
+
+        private final String intermediates;
+
+        private Type(String intermediates) {
+            this.intermediates = intermediates;
+        }
+
+        /**
+         * Returns the folder, relative to the repo root, with the
+         * intermediates of the modules of this type
+         */
+        public String getIntermediates() {
+            return intermediates;
+        }
+    }
+
+    private final String name;
+    private final Type type;
+    private final File makeFile;
+    private final File directory;
+    private final File outDir;
+    private final List<File> sourceDirs;
+    private final List<String> javaLibraries;
+    private final List<String> staticJavaLibraries;
+    private final String sdkVersion;
+    private final boolean standardLibraries;
+
+    /**
+     * @param javaLibraries the modules in LOCAL_JAVA_LIBRARIES
+     * @param staticJavaLibraries the modules in LOCAL_STATIC_JAVA_LIBRARIES
+     * @param sdkVersion LOCAL_SDK_VERSION, empty if the module is built
+     *            against the platform
+     * @param standardLibraries false if LOCAL_NO_STANDARD_LIBRARIES is set
+     */
+    public AndroidModule(File repoRoot, String name, Type type, File makeFile, File directory,
+            List<File> sourceDirs, List<String> javaLibraries, List<String> staticJavaLibraries,
+            String sdkVersion, boolean standardLibraries) {
+        this.name = name;
+        this.type = type;
+        this.makeFile = makeFile;
+        this.directory = directory;
+        this.outDir = new File(repoRoot, type.intermediates + "/" + name + "_intermediates");
+        this.sourceDirs = Collections.unmodifiableList(sourceDirs);
+        this.javaLibraries = Collections.unmodifiableList(javaLibraries);
+        this.staticJavaLibraries = Collections.unmodifiableList(staticJavaLibraries);
+        this.sdkVersion = sdkVersion;
+        this.standardLibraries = standardLibraries;
+    }
+
+    /**
+     * Returns the module name, LOCAL_PACKAGE_NAME for packages and
+     * LOCAL_MODULE for everything else
+     */
+    public String getName() {
+        return name;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Returns the makefile that defined the module. This may be a file
+     * included by the analyzed Android.mk.
+     */
+    public File getMakeFile() {
+        return makeFile;
+    }
+
+    /**
+     * Returns the module folder (LOCAL_PATH)
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Returns the intermediates folder the build puts the module's output in
+     */
+    public File getOutDirectory() {
+        return outDir;
+    }
+
+    /**
+     * Returns the folders with java sources listed in LOCAL_SRC_FILES. These
+     * are not necessarily source roots, a folder may be a package inside a
+     * source root.
+     */
+    public List<File> getSourceDirectories() {
+        return sourceDirs;
+    }
+
+    /**
+     * Returns the folder to attach as source for the module's library. That is
+     * the folder containing all source folders, or the module folder if the
+     * sources are not known. JDT finds the source roots below it.
+     *
+     * @return the folder, or null if the source folders are spread outside
+     *         the module folder. Their common folder could be all of
+     *         frameworks or even the repo.
+     */
+    public File getSourceRoot() {
+        if (sourceDirs.isEmpty()) {
+            return directory;
+        }
+        File root = sourceDirs.get(0);
+        for (final File dir : sourceDirs) {
+            while (root != null && !isInside(dir, root)) {
+                root = root.getParentFile();
+            }
+        }
+        if (root == null || !isInside(root, directory)) {
+            return null;
+        }
+        return root;
+    }
+
+    private static boolean isInside(File file, File dir) {
+        for (File parent = file; parent != null; parent = parent.getParentFile()) {
+            if (parent.equals(dir)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the names of the modules in LOCAL_JAVA_LIBRARIES, the libraries
+     * the module is compiled against
+     */
+    public List<String> getJavaLibraries() {
+        return javaLibraries;
+    }
+
+    /**
+     * Returns the names of the modules in LOCAL_STATIC_JAVA_LIBRARIES, the
+     * libraries included in the module
+     */
+    public List<String> getStaticJavaLibraries() {
+        return staticJavaLibraries;
+    }
+
+    /**
+     * Returns LOCAL_SDK_VERSION, or an empty string if the module is built
+     * against the platform
+     */
+    public String getSdkVersion() {
+        return sdkVersion;
+    }
+
+    /**
+     * Returns true if the build adds the standard libraries (core, framework,
+     * ...) to the module's classpath
+     */
+    public boolean hasStandardLibraries() {
+        return standardLibraries && type != Type.HOST_JAVA_LIBRARY;
+    }
+
+    public boolean isHostModule() {
+        return type == Type.HOST_JAVA_LIBRARY;
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + name;
+    }
+}
@@ -16,8 +16,28 @@
 
 package it.wallgren.android.platform.project;
 
+import it.wallgren.android.platform.Activator;
+import it.wallgren.android.platform.AndroidClasspathContainer;
+import it.wallgren.android.platform.GroupClasspathContainer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
 import org.eclipse.core.resources.FileInfoMatcherDescription;
-import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IContainer;
 import org.eclipse.core.resources.IFolder;
 import org.eclipse.core.resources.IProject;
 import org.eclipse.core.resources.IProjectDescription;
@@ -25,23 +45,42 @@ import org.eclipse.core.resources.IResourceFilterDescription;
 import org.eclipse.core.runtime.CoreException;
 import org.eclipse.core.runtime.IPath;
 import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
 import org.eclipse.core.runtime.Path;
+import org.eclipse.core.runtime.Status;
 import org.eclipse.jdt.core.IClasspathEntry;
 import org.eclipse.jdt.core.IJavaProject;
 import org.eclipse.jdt.core.JavaCore;
-
-import java.util.Arrays;
-import java.util.LinkedList;
-import java.util.Map;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
 
 public class AndroidPlatformProject extends AndroidProject {
     private static String FILE_FILTER_ID = "org.eclipse.ui.ide.patternFilterMatcher";
+    private static String REGEX_FILTER_ID = "org.eclipse.core.resources.regexFilterMatcher";
     private static final String[] BROKEN_CLASSPATH_ENTRIES = new String[]{"frameworks/ex/carousel/java"};
 
+    /**
+     * Root folders we take source folders from. This is for performance
+     * reasons. Indexing the entire Android repo is expensive as shit
+     */
+    private static final String[] INCLUDED_FOLDERS = new String[] {
+            "frameworks", "out", "libcore", "development"
+    };
+
     private final IPath repoPath;
 
     private final String projectName;
 
+    // Prepared source folders, relative to the repo root
+    private List<IPath> sourceFolders;
+
+    // The library container granularity, and its groups unless it is one
+    // container for the whole repo
+    private String granularity;
+    private List<String> groups;
+
     public AndroidPlatformProject(IPath repoPath) {
         this.repoPath = repoPath;
         this.projectName = getProjectName(repoPath);
@@ -61,8 +100,25 @@ public class AndroidPlatformProject extends AndroidProject {
         return repoPath;
     }
 
+    @Override
+    protected void doPrepare(IProgressMonitor monitor) throws CoreException {
+        sourceFolders = mangleClasspath(readSourceFolders());
+        granularity = GroupClasspathContainer.getGranularity();
+        if (!GroupClasspathContainer.GRANULARITY_REPO.equals(granularity)) {
+            groups = GroupClasspathContainer.getGroups(granularity, repoPath);
+            if (groups.isEmpty()) {
+                // Not built yet. Groups are added and removed as they are
+                // built, but that takes at least one container to start from.
+                groups = null;
+            }
+        }
+    }
+
     @Override
     public void doCreate(IProgressMonitor monitor) throws CoreException {
+        if (sourceFolders == null) {
+            prepare(monitor);
+        }
         final IProject project = createProject(projectName, monitor);
         addJavaNature(project, monitor);
     }
@@ -73,12 +129,6 @@ public class AndroidPlatformProject extends AndroidProject {
                     "Project must be created before giving it a Java nature");
         }
         final IFolder repoLink = createRepoLink(monitor, project, repoPath);
-        IFile classpath = repoLink.getFile("development/ide/eclipse/.classpath");
-        IFile classpathDestination = project.getFile(".classpath");
-        if (classpathDestination.exists()) {
-            classpathDestination.delete(true, monitor);
-        }
-        classpath.copy(classpathDestination.getFullPath(), true, monitor);
         final IProjectDescription description = project.getDescription();
         final String[] natures = description.getNatureIds();
         final String[] newNatures = Arrays.copyOf(natures, natures.length + 1);
@@ -92,39 +142,72 @@ public class AndroidPlatformProject extends AndroidProject {
         JavaCore.setComplianceOptions(JavaCore.VERSION_1_6, options);
         javaProject.setOptions(options);
 
-        IClasspathEntry[] classPath = mangleClasspath(javaProject.getRawClasspath(), project,
-                repoLink);
-        javaProject.setRawClasspath(classPath, monitor);
-        javaProject.setOutputLocation(javaProject.getPath().append("out"), monitor);
+        final LinkedList<IClasspathEntry> entries = new LinkedList<IClasspathEntry>();
+        for (final IPath path : sourceFolders) {
+            entries.add(JavaCore.newSourceEntry(repoLink.getFolder(path).getFullPath()));
+        }
+        // Add the special platform libs container, or one per group
+        if (groups == null) {
+            entries.add(getAndroidDependenceis(repoPath));
+        } else {
+            for (final String group : groups) {
+                entries.add(JavaCore.newContainerEntry(GroupClasspathContainer.getPath(
+                        granularity, group, repoPath)));
+            }
+        }
+        javaProject.setRawClasspath(entries.toArray(new IClasspathEntry[0]), javaProject
+                .getPath().append("out"), monitor);
     }
 
-    private IClasspathEntry[] mangleClasspath(IClasspathEntry[] rawClasspath, IProject project,
-            IFolder repoLink) {
-        LinkedList<IClasspathEntry> entries = new LinkedList<IClasspathEntry>();
+    /**
+     * Read the source folders of the eclipse classpath that comes with the
+     * platform (development/ide/eclipse/.classpath)
+     *
+     * @return the source folders relative to the repo root
+     */
+    private List<IPath> readSourceFolders() throws CoreException {
+        final File classpath = repoPath.append("development/ide/eclipse/.classpath").toFile();
+        final List<IPath> paths = new LinkedList<IPath>();
+        try {
+            final Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                    .parse(classpath);
+            final NodeList nodes = document.getElementsByTagName("classpathentry");
+            for (int i = 0; i < nodes.getLength(); i++) {
+                final Element element = (Element) nodes.item(i);
+                if ("src".equals(element.getAttribute("kind"))) {
+                    paths.add(new Path(element.getAttribute("path")));
+                }
+            }
+        } catch (final ParserConfigurationException e) {
+            throw new CoreException(new Status(IStatus.ERROR, Activator.PLUGIN_ID,
+                    "Can't read " + classpath, e));
+        } catch (final SAXException e) {
+            throw new CoreException(new Status(IStatus.ERROR, Activator.PLUGIN_ID,
+                    "Can't read " + classpath, e));
+        } catch (final IOException e) {
+            throw new CoreException(new Status(IStatus.ERROR, Activator.PLUGIN_ID,
+                    "Can't read " + classpath, e));
+        }
+        return paths;
+    }
+
+    private List<IPath> mangleClasspath(List<IPath> sourcePaths) {
+        final List<IPath> entries = new LinkedList<IPath>();
 
         // Filter out anything that is not framworks, packages, libcore or R
-        IFile frameworks = project.getFile("frameworks");
-        IFile packages = project.getFile("packages");
-        IFile libcore = project.getFile("libcore");
-        for (IClasspathEntry entry : rawClasspath) {
-            if (entry.getEntryKind() == IClasspathEntry.CPE_SOURCE) {
-                // is frameworks source folder or R source folder
-                if (frameworks.getFullPath().isPrefixOf(entry.getPath())
-                        || libcore.getFullPath().isPrefixOf(entry.getPath())
-                        || packages.getFullPath().isPrefixOf(entry.getPath())
-                        || entry.getPath().lastSegment().equals("R")) {
-                    IPath path = entry.getPath().removeFirstSegments(1);
-                    IFolder entryFolder = repoLink.getFolder(path);
-                    if (!isBroken(entryFolder)) {
-                        entries.add(JavaCore.newSourceEntry(entryFolder.getFullPath()));
-                    }
+        for (final IPath path : sourcePaths) {
+            // is frameworks source folder or R source folder
+            if (path.segmentCount() > 0
+                    && ("frameworks".equals(path.segment(0))
+                            || "libcore".equals(path.segment(0))
+                            || "packages".equals(path.segment(0))
+                            || path.lastSegment().equals("R"))) {
+                if (!isBroken(path)) {
+                    entries.add(path);
                 }
             }
         }
-
-        // Add the special platform libs container
-        entries.add(getAndroidDependenceis(repoPath));
-        return entries.toArray(new IClasspathEntry[0]);
+        return entries;
     }
 
     /**
@@ -134,13 +217,18 @@ public class AndroidPlatformProject extends AndroidProject {
      * @param classpathEntry
      * @return
      */
-    private boolean isBroken(IFolder classpathEntry) {
+    private boolean isBroken(IPath classpathEntry) {
         for (String src : BROKEN_CLASSPATH_ENTRIES) {
-            if (classpathEntry.getFullPath().toString().endsWith(src)) {
+            if (classpathEntry.toString().endsWith(src)) {
                 return true;
             }
         }
-        return !classpathEntry.exists();
+        // Only source folders of the root folders we want, everything above
+        // the source folders is hidden by the resource filters
+        if (!Arrays.asList(INCLUDED_FOLDERS).contains(classpathEntry.segment(0))) {
+            return true;
+        }
+        return !repoPath.append(classpathEntry).toFile().isDirectory();
     }
 
     private IFolder createRepoLink(IProgressMonitor monitor, IProject project, IPath repoPath)
@@ -151,56 +239,76 @@ public class AndroidPlatformProject extends AndroidProject {
             return repoLink;
         }
 
-        // List of root folders we want to keep, all else is hidden. This is for
-        // performance reasons. Indexing the entire Android repo is expensive as
-        // shit
-        String[] resources = new String[] {
-                "frameworks", "out", "libcore", "development"
-        };
-
-        for (String res : resources) {
-            repoLink.createFilter(IResourceFilterDescription.INCLUDE_ONLY
-                    | IResourceFilterDescription.FOLDERS, new FileInfoMatcherDescription(
-                    FILE_FILTER_ID, res), 0, monitor);
+        // Only the folders leading to the source folders are kept, everything
+        // else is hidden from the workspace so it is never refreshed or indexed
+        final int filterFlags = IResourceFilterDescription.INCLUDE_ONLY
+                | IResourceFilterDescription.FOLDERS | IResourceFilterDescription.FILES;
+        for (final Map.Entry<IPath, Set<String>> entry : getIncludedChildren().entrySet()) {
+            final StringBuilder regex = new StringBuilder();
+            for (final String child : entry.getValue()) {
+                regex.append(regex.length() == 0 ? "^(" : "|").append(Pattern.quote(child));
+            }
+            regex.append(")$");
+            final IContainer folder = entry.getKey().isEmpty() ? repoLink : repoLink
+                    .getFolder(entry.getKey());
+            folder.createFilter(filterFlags, new FileInfoMatcherDescription(REGEX_FILTER_ID,
+                    regex.toString()), 0, monitor);
         }
 
-        // Let's filter out some content we don't need. To avoid it being
-        // indexed
+        // Let's filter out some content we don't need inside the source
+        // folders. To avoid it being indexed
         repoLink.createFilter(IResourceFilterDescription.EXCLUDE_ALL
                 | IResourceFilterDescription.FOLDERS | IResourceFilterDescription.INHERITABLE,
                 new FileInfoMatcherDescription(FILE_FILTER_ID, "bin"), 0, monitor);
-        repoLink.createFilter(IResourceFilterDescription.EXCLUDE_ALL
-                | IResourceFilterDescription.FOLDERS, new FileInfoMatcherDescription(
-                FILE_FILTER_ID, ".repo"), 0, monitor);
         repoLink.createFilter(IResourceFilterDescription.EXCLUDE_ALL
                 | IResourceFilterDescription.FOLDERS | IResourceFilterDescription.INHERITABLE,
                 new FileInfoMatcherDescription(FILE_FILTER_ID, ".git"), 0, monitor);
-        // repoLink.createFilter(IResourceFilterDescription.EXCLUDE_ALL
-        // | IResourceFilterDescription.FOLDERS, new FileInfoMatcherDescription(
-        // FILE_FILTER_ID, "out"), 0, monitor);
-        final IFolder out = repoLink.getFolder("out");
-        // Only allow target/common/R in the out folder
-        final int filterFlags = IResourceFilterDescription.INCLUDE_ONLY
-                | IResourceFilterDescription.FOLDERS | IResourceFilterDescription.FILES;
-        out.createFilter(filterFlags, new FileInfoMatcherDescription(FILE_FILTER_ID, "target"), 0,
-                monitor);
-
-        final IFolder target = out.getFolder("target");
-        target.createFilter(filterFlags, new FileInfoMatcherDescription(FILE_FILTER_ID, "common"),
-                0, monitor);
-
-        final IFolder common = target.getFolder("common");
-        common.createFilter(filterFlags, new FileInfoMatcherDescription(FILE_FILTER_ID, "R"), 0,
-                monitor);
         repoLink.createLink(repoPath, 0, monitor);
 
         return repoLink;
     }
 
+    /**
+     * Returns the children to keep of every folder above a source folder,
+     * including the repo root itself (the empty path). The generated R
+     * sources are always kept. Folders inside a source folder are not
+     * filtered.
+     */
+    private Map<IPath, Set<String>> getIncludedChildren() {
+        final List<IPath> roots = new LinkedList<IPath>(sourceFolders);
+        roots.add(new Path("out/target/common/R"));
+        final Map<IPath, Set<String>> children = new TreeMap<IPath, Set<String>>(
+                new Comparator<IPath>() {
+                    @Override
+                    public int compare(IPath lhs, IPath rhs) {
+                        return lhs.toString().compareTo(rhs.toString());
+                    }
+                });
+        for (final IPath root : roots) {
+            for (int i = 0; i < root.segmentCount(); i++) {
+                final IPath parent = root.uptoSegment(i);
+                Set<String> names = children.get(parent);
+                if (names == null) {
+                    names = new TreeSet<String>();
+                    children.put(parent, names);
+                }
+                names.add(root.segment(i));
+            }
+        }
+        // A source folder nested in another one must not hide the rest of
+        // the outer source folder
+        for (final IPath root : roots) {
+            for (final Iterator<IPath> it = children.keySet().iterator(); it.hasNext();) {
+                if (root.isPrefixOf(it.next())) {
+                    it.remove();
+                }
+            }
+        }
+        return children;
+    }
+
     private IClasspathEntry getAndroidDependenceis(IPath repoPath) {
-        return JavaCore.newContainerEntry(new Path(
-                "it.wallgren.android.platform.classpathContainerInitializer"
-                        + repoPath.makeAbsolute()));
+        return JavaCore.newContainerEntry(AndroidClasspathContainer.getPath(repoPath));
     }
 
     @Override
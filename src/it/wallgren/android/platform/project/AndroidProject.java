@@ -18,6 +18,7 @@ package it.wallgren.android.platform.project;
 
 import org.eclipse.core.resources.IProject;
 import org.eclipse.core.resources.IWorkspace;
+import org.eclipse.core.resources.IWorkspaceRunnable;
 import org.eclipse.core.resources.ResourcesPlugin;
 import org.eclipse.core.runtime.CoreException;
 import org.eclipse.core.runtime.IPath;
@@ -40,6 +41,15 @@ public abstract class AndroidProject implements Comparable<AndroidProject> {
      */
     protected abstract void doCreate(IProgressMonitor monitor) throws CoreException;
 
+    /**
+     * Do the file system analysis needed to create the project. Called before
+     * {@link #doCreate(IProgressMonitor)}, possibly on another thread and in
+     * parallel with the preparation of other projects, so it must not modify
+     * the workspace.
+     */
+    protected void doPrepare(IProgressMonitor monitor) throws CoreException {
+    }
+
     protected IProject createProject(String name, IProgressMonitor monitor) throws CoreException {
         project = workspace.getRoot().getProject(name);
         if (!project.exists()) {
@@ -50,8 +60,22 @@ public abstract class AndroidProject implements Comparable<AndroidProject> {
         return project;
     }
 
+    public final void prepare(IProgressMonitor monitor) throws CoreException {
+        doPrepare(monitor);
+    }
+
+    /**
+     * Create the project. All workspace changes are done in one workspace
+     * operation so they result in a single resource change event, instead of
+     * one per link, filter and classpath change.
+     */
     public final void create(IProgressMonitor monitor) throws CoreException {
-        doCreate(monitor);
+        workspace.run(new IWorkspaceRunnable() {
+            @Override
+            public void run(IProgressMonitor monitor) throws CoreException {
+                doCreate(monitor);
+            }
+        }, workspace.getRoot(), IWorkspace.AVOID_UPDATE, monitor);
     }
 
     public abstract boolean preSelected();
@@ -0,0 +1,269 @@
+/**
+ * Copyright 2012 Martin Wallgren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.wallgren.android.platform.project;
+
+import it.wallgren.android.platform.SharedPool;
+import it.wallgren.android.platform.StateFile;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Finds the makefiles of a repo the way the build does: the first Android.mk
+ * in each folder tree, not looking any deeper once one is found. The
+ * makefiles below it are included by that one if they are part of the build.
+ * out, .repo and .git are never searched.
+ *
+ * Folders are searched in parallel on the {@link SharedPool}. For every folder
+ * the modification time, the sub folders to search and whether it has an
+ * Android.mk is stored in the plugin state location, one file per repo. A
+ * folder with an unchanged modification time has the same content, so the
+ * next search only has to stat it instead of listing it again.
+ */
+public class MakefileIndex {
+    private static final int VERSION = 1;
+    private static final String MAKEFILE_NAME = "Android.mk";
+
+    /**
+     * Folders modified this close to the time the index was written may be
+     * modified again without the modification time changing (file systems
+     * with one second resolution). Those folders are always searched again.
+     */
+    private static final long MTIME_RESOLUTION = 2000;
+
+    /**
+     * Folders that never contain makefiles of the build
+     */
+    private static final Set<String> EXCLUDED_FOLDERS = new HashSet<String>(Arrays.asList(
+            "out", ".repo", ".git"));
+
+    private final File repoRoot;
+    private final StateFile indexFile;
+    private final long created;
+    private final Map<String, Entry> previous;
+    private final Map<String, Entry> current = new ConcurrentHashMap<String, Entry>();
+
+    private MakefileIndex(File repoRoot, StateFile indexFile, long created,
+            Map<String, Entry> previous) {
+        this.repoRoot = repoRoot;
+        this.indexFile = indexFile;
+        this.created = created;
+        this.previous = previous;
+    }
+
+    /**
+     * Load the index for a repo. If there is no stored index (or it can't be
+     * read) an empty index is returned.
+     */
+    public static MakefileIndex load(final File repoRoot) {
+        final StateFile indexFile = StateFile.get("makefiles", repoRoot.getAbsolutePath(),
+                ".dirs", VERSION, false);
+        if (indexFile == null) {
+            return empty(repoRoot, null);
+        }
+        final MakefileIndex index = indexFile.read(new StateFile.Reader<MakefileIndex>() {
+            @Override
+            public MakefileIndex read(DataInputStream in) throws IOException {
+                final long created = in.readLong();
+                final int size = in.readInt();
+                final Map<String, Entry> entries = new HashMap<String, Entry>(size * 2);
+                for (int i = 0; i < size; i++) {
+                    final String dir = in.readUTF();
+                    entries.put(dir, Entry.read(in));
+                }
+                return new MakefileIndex(repoRoot, indexFile, created, entries);
+            }
+        });
+        // Without an index the folders will be searched again
+        return index != null ? index : empty(repoRoot, indexFile);
+    }
+
+    private static MakefileIndex empty(File repoRoot, StateFile indexFile) {
+        return new MakefileIndex(repoRoot, indexFile, 0, Collections.<String, Entry> emptyMap());
+    }
+
+    /**
+     * Search the repo for makefiles.
+     *
+     * @return the makefiles, sorted
+     */
+    public List<File> find() {
+        final Queue<File> makeFiles = new ConcurrentLinkedQueue<File>();
+        SharedPool.get().invoke(new FindTask(makeFiles, repoRoot.toPath()));
+        final List<File> sorted = new ArrayList<File>(makeFiles);
+        Collections.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * Write everything found (or confirmed) by the last search. Folders that
+     * were not visited, i.e. removed from the file system, are dropped.
+     */
+    public void save() {
+        if (indexFile == null) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        indexFile.write(new StateFile.Writer() {
+            @Override
+            public void write(DataOutputStream out) throws IOException {
+                out.writeLong(now);
+                out.writeInt(current.size());
+                for (final Map.Entry<String, Entry> entry : current.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    entry.getValue().write(out);
+                }
+            }
+        });
+    }
+
+    /**
+     * Searches one folder and forks a new task for each sub folder
+     */
+    private class FindTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Queue<File> out;
+        private final Path dir;
+
+        public FindTask(Queue<File> out, Path dir) {
+            this.out = out;
+            this.dir = dir;
+        }
+
+        @Override
+        protected void compute() {
+            final long mtime = dir.toFile().lastModified();
+            final String key = repoRoot.toPath().relativize(dir).toString();
+            Entry entry = previous.get(key);
+            if (entry == null || entry.mtime != mtime || mtime > created - MTIME_RESOLUTION) {
+                entry = list(mtime);
+                if (entry == null) {
+                    return;
+                }
+            }
+            current.put(key, entry);
+
+            if (entry.hasMakeFile) {
+                out.add(dir.resolve(MAKEFILE_NAME).toFile());
+                return;
+            }
+            final List<FindTask> tasks = new ArrayList<FindTask>(entry.dirs.size());
+            for (final String name : entry.dirs) {
+                tasks.add(new FindTask(out, dir.resolve(name)));
+            }
+            invokeAll(tasks);
+        }
+
+        /**
+         * List the folder. The repo root itself is not part of the build,
+         * only its sub folders are.
+         *
+         * @return the content or null if the folder can't be read
+         */
+        private Entry list(long mtime) {
+            final boolean top = dir.equals(repoRoot.toPath());
+            if (!top && Files.isRegularFile(dir.resolve(MAKEFILE_NAME))) {
+                return new Entry(mtime, true, Collections.<String> emptyList());
+            }
+            final List<String> dirs = new ArrayList<String>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                for (final Path child : stream) {
+                    final String name = child.getFileName().toString();
+                    if (EXCLUDED_FOLDERS.contains(name)) {
+                        continue;
+                    }
+                    if (isDirectory(child)) {
+                        dirs.add(name);
+                    }
+                }
+            } catch (final IOException e) {
+                // Not readable, nothing to search
+                return null;
+            }
+            return new Entry(mtime, false, dirs);
+        }
+
+        /**
+         * Symbolic links are not followed, they could make us search the same
+         * folders forever
+         */
+        private boolean isDirectory(Path path) {
+            try {
+                return Files.readAttributes(path, BasicFileAttributes.class,
+                        LinkOption.NOFOLLOW_LINKS).isDirectory();
+            } catch (final IOException e) {
+                // Removed while we were listing
+                return false;
+            }
+        }
+    }
+
+    /**
+     * The indexed content of one folder
+     */
+    private static class Entry {
+        final long mtime;
+        final boolean hasMakeFile;
+        final List<String> dirs;
+
+        Entry(long mtime, boolean hasMakeFile, List<String> dirs) {
+            this.mtime = mtime;
+            this.hasMakeFile = hasMakeFile;
+            this.dirs = dirs;
+        }
+
+        static Entry read(DataInputStream in) throws IOException {
+            final long mtime = in.readLong();
+            final boolean hasMakeFile = in.readBoolean();
+            final int size = in.readInt();
+            final List<String> dirs = new ArrayList<String>(size);
+            for (int i = 0; i < size; i++) {
+                dirs.add(in.readUTF());
+            }
+            return new Entry(mtime, hasMakeFile, dirs);
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeLong(mtime);
+            out.writeBoolean(hasMakeFile);
+            out.writeInt(dirs.size());
+            for (final String dir : dirs) {
+                out.writeUTF(dir);
+            }
+        }
+    }
+}
@@ -0,0 +1,315 @@
+/**
+ * Copyright 2012 Martin Wallgren
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.wallgren.android.platform.project;
+
+import it.wallgren.android.platform.LibrarySelector;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * The java modules of a repo and the dependencies between them, from
+ * LOCAL_JAVA_LIBRARIES and LOCAL_STATIC_JAVA_LIBRARIES.
+ *
+ * The graph is used to give a package only the libraries it is built
+ * against instead of every library in the repo.
+ */
+public class ModuleGraph {
+    private static final String LIBRARY_NAME = "classes.jar";
+    private static final String INTERMEDIATES_SUFFIX = "_intermediates";
+
+    /**
+     * Libraries the build adds to every target module that is built against
+     * the platform, see build/core/java.mk
+     */
+    private static final List<String> STANDARD_LIBRARIES = Arrays.asList("core", "core-junit",
+            "ext", "framework");
+
+    /**
+     * The graphs, built at most once per repo until invalidated. Graphs of
+     * different repos are built in parallel, only callers waiting for the
+     * same repo are blocked while it is built.
+     */
+    private static final ConcurrentMap<File, Future<ModuleGraph>> GRAPHS =
+            new ConcurrentHashMap<File, Future<ModuleGraph>>();
+
+    private final File repoRoot;
+    private final Map<String, AndroidModule> modules = new HashMap<String, AndroidModule>();
+    private boolean complete;
+
+    private ModuleGraph(File repoRoot) {
+        this.repoRoot = repoRoot;
+    }
+
+    /**
+     * Returns the graph of a repo. The repo is analyzed the first time,
+     * after that the same graph is returned until it is invalidated.
+     */
+    public static ModuleGraph get(final File repoRoot) {
+        Future<ModuleGraph> graph = GRAPHS.get(repoRoot);
+        if (graph == null) {
+            final FutureTask<ModuleGraph> task = new FutureTask<ModuleGraph>(
+                    new Callable<ModuleGraph>() {
+                        @Override
+                        public ModuleGraph call() {
+                            final ModuleGraph created = new ModuleGraph(repoRoot);
+                            created.complete = created.build();
+                            return created;
+                        }
+                    });
+            graph = GRAPHS.putIfAbsent(repoRoot, task);
+            if (graph == null) {
+                // We won, build it on this thread
+                graph = task;
+                task.run();
+                final ModuleGraph built = getGraph(repoRoot, task);
+                if (!built.complete) {
+                    // Interrupted, let the next caller build it again
+                    GRAPHS.remove(repoRoot, task);
+                }
+                return built;
+            }
+        }
+        return getGraph(repoRoot, graph);
+    }
+
+    /**
+     * Drop the graph of a repo, e.g. because modules have been built. The
+     * next call to {@link #get(File)} analyzes the repo again, mostly from
+     * the makefile cache.
+     */
+    public static void invalidate(File repoRoot) {
+        GRAPHS.remove(repoRoot);
+    }
+
+    /**
+     * Wait for a graph to be built by another thread. Interrupts are deferred
+     * until it is done.
+     */
+    private static ModuleGraph getGraph(File repoRoot, Future<ModuleGraph> graph) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return graph.get();
+                } catch (final InterruptedException e) {
+                    interrupted = true;
+                } catch (final ExecutionException e) {
+                    GRAPHS.remove(repoRoot, graph);
+                    if (e.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException) e.getCause();
+                    }
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Find and analyze all makefiles in the repo. The makefiles are analyzed
+     * in parallel, but the modules are added in makefile order so that the
+     * graph is the same every time.
+     *
+     * @return false if interrupted before all makefiles were analyzed
+     */
+    private boolean build() {
+        final MakefileIndex index = MakefileIndex.load(repoRoot);
+        final List<File> makeFiles = index.find();
+        index.save();
+
+        final AndroidMkCache cache = AndroidMkCache.get(repoRoot);
+        final int threads = Runtime.getRuntime().availableProcessors();
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<List<AndroidModule>>> results =
+                    new ArrayList<Future<List<AndroidModule>>>(makeFiles.size());
+            for (final File makeFile : makeFiles) {
+                results.add(executor.submit(new Callable<List<AndroidModule>>() {
+                    @Override
+                    public List<AndroidModule> call() throws Exception {
+                        return cache.getModules(makeFile);
+                    }
+                }));
+            }
+            for (final Future<List<AndroidModule>> result : results) {
+                try {
+                    for (final AndroidModule module : result.get()) {
+                        add(module);
+                    }
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                } catch (final ExecutionException e) {
+                    // Skip the failing makefile
+                    e.getCause().printStackTrace();
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            cache.save();
+        }
+        return true;
+    }
+
+    /**
+     * Add a module to the graph. A host and a target module may have the
+     * same name, the target module is the one packages depend on.
+     */
+    private void add(AndroidModule module) {
+        final AndroidModule existing = modules.get(module.getName());
+        if (existing == null || (existing.isHostModule() && !module.isHostModule())) {
+            modules.put(module.getName(), module);
+        }
+    }
+
+    /**
+     * Returns the module that a library in the intermediates folders belongs
+     * to. The build puts the output of a module in <name>_intermediates.
+     *
+     * @return the module or null if the library is not the output of a module
+     *         in the repo
+     */
+    public AndroidModule getModuleOf(File library) {
+        final File dir = library.getParentFile();
+        if (dir == null || !dir.getName().endsWith(INTERMEDIATES_SUFFIX)) {
+            return null;
+        }
+        final String name = dir.getName().substring(0,
+                dir.getName().length() - INTERMEDIATES_SUFFIX.length());
+        final AndroidModule module = modules.get(name);
+        if (module == null || !module.getOutDirectory().equals(dir)) {
+            // A host module, or a module with the same name in another
+            // intermediates folder
+            return null;
+        }
+        return module;
+    }
+
+    /**
+     * @return the module or null if no makefile in the repo defines it
+     */
+    public AndroidModule getModule(String name) {
+        return modules.get(name);
+    }
+
+    /**
+     * Returns the names of all modules a module needs to compile, directly
+     * or through other modules, in breadth first order. The standard
+     * libraries are included if the build adds them.
+     */
+    public List<String> getDependencies(String name) {
+        final Set<String> visited = new LinkedHashSet<String>();
+        final LinkedList<String> queue = new LinkedList<String>();
+        visited.add(name);
+        queue.add(name);
+        while (!queue.isEmpty()) {
+            final AndroidModule module = modules.get(queue.poll());
+            if (module == null) {
+                // Prebuilt or not in this repo, no dependencies we know of
+                continue;
+            }
+            final List<String> dependencies = new ArrayList<String>();
+            if (module.hasStandardLibraries() && module.getSdkVersion().length() == 0) {
+                dependencies.addAll(STANDARD_LIBRARIES);
+            }
+            dependencies.addAll(module.getJavaLibraries());
+            dependencies.addAll(module.getStaticJavaLibraries());
+            for (final String dependency : dependencies) {
+                if (visited.add(dependency)) {
+                    queue.add(dependency);
+                }
+            }
+        }
+        final List<String> dependencies = new ArrayList<String>(visited);
+        dependencies.remove(0);
+        return dependencies;
+    }
+
+    /**
+     * Returns the compiled libraries a module needs, the preferred jar of
+     * every dependency that has been built. Modules built against an SDK version
+     * get the android.jar of that SDK instead of the platform libraries.
+     */
+    public List<File> getLibraries(String name) {
+        final List<File> libraries = new ArrayList<File>();
+        final AndroidModule module = modules.get(name);
+        if (module != null && module.hasStandardLibraries()
+                && module.getSdkVersion().length() > 0) {
+            final File sdkLibrary = getSdkLibrary(module.getSdkVersion());
+            if (sdkLibrary != null) {
+                libraries.add(sdkLibrary);
+            }
+        }
+        final LibrarySelector selector = LibrarySelector.getDefault();
+        for (final String dependency : getDependencies(name)) {
+            final File library = selector.choose(getOutDirectory(dependency));
+            if (library != null) {
+                libraries.add(library);
+            }
+        }
+        return libraries;
+    }
+
+    private File getOutDirectory(String name) {
+        final AndroidModule module = modules.get(name);
+        if (module != null) {
+            return module.getOutDirectory();
+        }
+        // Not defined by an Android.mk we know of, but it may still have
+        // been built
+        return new File(repoRoot, AndroidModule.Type.JAVA_LIBRARY.getIntermediates() + "/"
+                + name + INTERMEDIATES_SUFFIX);
+    }
+
+    /**
+     * @return the android.jar of an SDK version, or null if it is not found
+     */
+    private File getSdkLibrary(String version) {
+        if ("current".equals(version)) {
+            final File stubs = new File(getOutDirectory("android_stubs_current"), LIBRARY_NAME);
+            return stubs.isFile() ? stubs : null;
+        }
+        for (final String prebuilts : new String[] {
+                "prebuilts/sdk", "prebuilt/sdk"
+        }) {
+            final File jar = new File(repoRoot, prebuilts + "/" + version + "/android.jar");
+            if (jar.isFile()) {
+                return jar;
+            }
+        }
+        return null;
+    }
+}
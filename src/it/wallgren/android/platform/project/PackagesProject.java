@@ -16,12 +16,20 @@
 
 package it.wallgren.android.platform.project;
 
+import it.wallgren.android.platform.Activator;
+import it.wallgren.android.platform.AndroidClasspathContainer;
+import it.wallgren.android.platform.DirectoryAnalyzer;
+import it.wallgren.android.platform.JavaLibraryFinder;
+import it.wallgren.android.platform.ModuleClasspathContainer;
+
 import java.io.File;
-import java.io.FileFilter;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
 import org.eclipse.core.resources.FileInfoMatcherDescription;
 import org.eclipse.core.resources.IFolder;
@@ -31,7 +39,9 @@ import org.eclipse.core.resources.IResourceFilterDescription;
 import org.eclipse.core.runtime.CoreException;
 import org.eclipse.core.runtime.IPath;
 import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
 import org.eclipse.core.runtime.Path;
+import org.eclipse.core.runtime.Status;
 import org.eclipse.jdt.core.IClasspathEntry;
 import org.eclipse.jdt.core.IJavaProject;
 import org.eclipse.jdt.core.JavaCore;
@@ -41,13 +51,22 @@ public class PackagesProject extends AndroidProject {
     private final IPath root;
     private final String projectName;
     private final IPath repoPath;
-    private final File outDir;
+    private final AndroidModule module;
+
+    // Prepared source folders (relative to root) and libraries
+    private List<IPath> sourceFolders;
+    private List<File> libraries;
+    // True if the module graph of the repo knows the module
+    private boolean inGraph;
 
-    public PackagesProject(IPath root, IPath repoPath, String packageName, File outDir) {
+    /**
+     * @param module the module defined by the Android.mk in root
+     */
+    public PackagesProject(IPath root, IPath repoPath, AndroidModule module) {
         this.root = root;
         this.repoPath = repoPath;
-        this.projectName = repoPath.lastSegment() + "-" + packageName;
-        this.outDir = outDir;
+        this.projectName = repoPath.lastSegment() + "-" + module.getName();
+        this.module = module;
     }
 
     @Override
@@ -60,14 +79,24 @@ public class PackagesProject extends AndroidProject {
         return root;
     }
 
+    @Override
+    protected void doPrepare(IProgressMonitor monitor) throws CoreException {
+        sourceFolders = getJavaSourceFolders();
+        libraries = JavaLibraryFinder.findJars(module.getOutDirectory());
+        inGraph = ModuleGraph.get(repoPath.toFile()).getModule(module.getName()) != null;
+    }
+
     @Override
     public void doCreate(IProgressMonitor monitor) throws CoreException {
+        if (sourceFolders == null) {
+            prepare(monitor);
+        }
         final IProject project = createProject(projectName, monitor);
         final IFolder link = createLink(monitor, project, root);
 
-        final IClasspathEntry[] srcFolders = getSourceFolders(project, link, monitor);
+        final IClasspathEntry[] srcFolders = getSourceFolders(link);
         final IClasspathEntry[] pkgLibs = getPackageDependencies();
-        final IClasspathEntry platform = getPlatformDependenceis(repoPath);
+        final IClasspathEntry platform = getModuleDependencies();
 
         final IClasspathEntry[] classPath = new IClasspathEntry[srcFolders.length + pkgLibs.length + 1];
         System.arraycopy(srcFolders, 0, classPath, 0, srcFolders.length);
@@ -97,8 +126,7 @@ public class PackagesProject extends AndroidProject {
         // Compliance level need to be 1.6
         JavaCore.setComplianceOptions(JavaCore.VERSION_1_6, options);
         javaProject.setOptions(options);
-        javaProject.setRawClasspath(classPath, monitor);
-        javaProject.setOutputLocation(javaProject.getPath().append("out"), monitor);
+        javaProject.setRawClasspath(classPath, javaProject.getPath().append("out"), monitor);
     }
 
     private IFolder createLink(IProgressMonitor monitor, IProject project, IPath repoPath)
@@ -118,56 +146,128 @@ public class PackagesProject extends AndroidProject {
         return repoLink;
     }
 
-    private IClasspathEntry getPlatformDependenceis(IPath repoPath) {
-        return JavaCore.newContainerEntry(new Path(
-                "it.wallgren.android.platform.classpathContainerInitializer"
-                        + repoPath.makeAbsolute()));
+    /**
+     * The libraries the module is built against, not every library in the
+     * repo. A module the graph doesn't know, e.g. one in a makefile the graph
+     * could not parse, gets every library in the repo instead of none.
+     */
+    private IClasspathEntry getModuleDependencies() {
+        if (!inGraph) {
+            return JavaCore.newContainerEntry(AndroidClasspathContainer.getPath(repoPath));
+        }
+        return JavaCore.newContainerEntry(ModuleClasspathContainer.getPath(module.getName(),
+                repoPath));
     }
 
     private IClasspathEntry[] getPackageDependencies() {
-        final File[] jars = outDir.listFiles(new FileFilter() {
-            @Override
-            public boolean accept(File pathname) {
-                return pathname.getAbsolutePath().endsWith(".jar");
-            }
-        });
-        final IClasspathEntry[] entries = new IClasspathEntry[jars.length];
+        final IClasspathEntry[] entries = new IClasspathEntry[libraries.size()];
         int i = 0;
-        for (final File file : jars) {
+        for (final File file : libraries) {
             entries[i++] = JavaCore.newLibraryEntry(new Path(file.getAbsolutePath()), null, null);
         }
         return entries;
     }
 
-    private IClasspathEntry[] getSourceFolders(IProject project, IFolder link,
-            IProgressMonitor monitor) throws CoreException {
-        final List<IPath> files = getJavaSourceFolders(link);
-        final IClasspathEntry[] classPathEntries = new IClasspathEntry[files.size()];
+    private IClasspathEntry[] getSourceFolders(IFolder link) {
+        final IClasspathEntry[] classPathEntries = new IClasspathEntry[sourceFolders.size()];
         int i = 0;
-        for (final IPath folder : files) {
-            classPathEntries[i] = JavaCore.newSourceEntry(folder);
+        for (final IPath folder : sourceFolders) {
+            classPathEntries[i] = JavaCore.newSourceEntry(link.getFullPath().append(folder));
             i++;
         }
 
         return classPathEntries;
     }
 
-    private List<IPath> getJavaSourceFolders(IFolder link) {
-        // TODO: Lookup all relevant java sources automagically (via Android.mk
-        // or some other way)
-        final List<IPath> srcFolders = new LinkedList<IPath>();
+    /**
+     * @return the java source folders relative to root
+     */
+    private List<IPath> getJavaSourceFolders() throws CoreException {
+        List<IPath> srcFolders = toSourceFolders(findSourceRoots(module.getSourceDirectories()));
+        if (!srcFolders.isEmpty()) {
+            return srcFolders;
+        }
 
-        File srcFile = link.getRawLocation().append("src").toFile();
-        if (srcFile.isDirectory()) {
-            srcFolders.add(link.getFullPath().append("src"));
+        // Nothing usable in the Android.mk, try the usual suspects
+        srcFolders = new LinkedList<IPath>();
+        if (root.append("src").toFile().isDirectory()) {
+            srcFolders.add(new Path("src"));
         }
-        srcFile = link.getRawLocation().append("java/src").toFile();
-        if (srcFile.isDirectory()) {
-            srcFolders.add(link.getFullPath().append("java/src"));
+        if (root.append("java/src").toFile().isDirectory()) {
+            srcFolders.add(new Path("java/src"));
+        }
+        if (!srcFolders.isEmpty()) {
+            return srcFolders;
+        }
+
+        // Last resort, look at every java file in the package
+        return toSourceFolders(new TreeSet<File>(analyze(root.toFile())));
+    }
+
+    /**
+     * Find the source roots of the java files in the given folders. The
+     * folders from the makefile are source roots already, except the module
+     * folder itself, e.g. from $(call all-subdir-java-files), which gives no
+     * root and is analyzed.
+     */
+    private Set<File> findSourceRoots(List<File> dirs) throws CoreException {
+        final Set<File> roots = new TreeSet<File>();
+        for (final File dir : dirs) {
+            if (!dir.isDirectory()) {
+                continue;
+            }
+            if (dir.equals(module.getDirectory())) {
+                roots.addAll(analyze(dir));
+            } else {
+                roots.add(dir);
+            }
+        }
+        return roots;
+    }
+
+    /**
+     * Find the source roots of the java files in a folder by reading their
+     * package declarations
+     */
+    private Set<File> analyze(File dir) throws CoreException {
+        try {
+            return new DirectoryAnalyzer(dir).findJavaSourceDirectories();
+        } catch (final IOException e) {
+            throw new CoreException(new Status(IStatus.ERROR, Activator.PLUGIN_ID,
+                    "Can't analyze " + dir, e));
+        }
+    }
+
+    /**
+     * Make the source roots relative to root. Roots outside of root, and
+     * roots inside other roots, can't be source folders in the project and are
+     * dropped.
+     */
+    private List<IPath> toSourceFolders(Set<File> roots) {
+        final List<IPath> kept = new LinkedList<IPath>();
+        // Sorted, so a root comes before the roots inside it
+        for (final File dir : roots) {
+            final IPath path = new Path(dir.getAbsolutePath());
+            if (root.isPrefixOf(path) && !isInside(kept, path)) {
+                kept.add(path);
+            }
+        }
+        final List<IPath> srcFolders = new LinkedList<IPath>();
+        for (final IPath path : kept) {
+            srcFolders.add(path.makeRelativeTo(root));
         }
         return srcFolders;
     }
 
+    private boolean isInside(List<IPath> folders, IPath path) {
+        for (final IPath folder : folders) {
+            if (folder.isPrefixOf(path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     @Override
     public boolean preSelected() {
         return false;